@@ -0,0 +1,62 @@
+package com.mszf.bench;
+
+import com.mszf.nio.BufferPool;
+import com.mszf.nio.PooledBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Taking a buffer for a read or a response from the pool, against allocating one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferBenchmark {
+
+    @Param({"256", "4096", "65536"})
+    public int size;
+
+    private final BufferPool pool = BufferPool.getDefault();
+
+    @Benchmark
+    public boolean pooled() {
+        PooledBuffer buffer = pool.allocate(size);
+        buffer.buffer().putLong(0, size);
+        return buffer.release();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean pooledContended() {
+        return pooled();
+    }
+
+    @Benchmark
+    public ByteBuffer allocateDirect() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.putLong(0, size);
+        return buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer allocateHeap() {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putLong(0, size);
+        return buffer;
+    }
+}
@@ -0,0 +1,159 @@
+package com.mszf.bench;
+
+import com.mszf.handler.SocketHandler;
+import com.mszf.util.ByteUtils;
+import com.mszf.util.Frame;
+import com.mszf.util.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of the frames, without any I/O.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+
+    // The frames decoded by an invocation of the decoding benchmarks
+    private static final int FRAMES = 64;
+
+    // The reads the fragmented input is cut into, one Ethernet MTU
+    private static final int SEGMENT = 1500;
+
+    @Param({"16", "1024", "65536"})
+    public int payload;
+
+    private Message message;
+
+    private byte[] content;
+
+    private byte[] header;
+
+    private ByteBuffer direct;
+
+    // FRAMES frames back to back, as a pipelining client sends them
+    private ByteBuffer frames;
+
+    // The same frames in the compact format
+    private ByteBuffer compactFrames;
+
+    private SocketHandler decoder;
+
+    private SocketHandler compactDecoder;
+
+    @Setup
+    public void setup() {
+        char[] chars = new char[payload];
+        Arrays.fill(chars, 'x');
+        message = new Message(new String(chars));
+        content = message.getContent();
+        header = ByteUtils.longToBytes(content.length);
+        direct = ByteBuffer.allocateDirect(Message.frameLength(content.length, true));
+
+        frames = ByteBuffer.allocateDirect(FRAMES * Message.frameLength(content.length, true));
+        for (int i = 0; i < FRAMES; i++) {
+            Message.writeFrame(frames, i, content);
+        }
+        frames.flip();
+
+        compactFrames = ByteBuffer.allocateDirect(FRAMES * Message.compactFrameLength(content.length, true, FRAMES));
+        for (int i = 0; i < FRAMES; i++) {
+            Message.writeCompactFrame(compactFrames, i, content);
+        }
+        compactFrames.flip();
+
+        decoder = new SocketHandler();
+        compactDecoder = new SocketHandler();
+    }
+
+    @Benchmark
+    public byte[] messageGetBody() {
+        return message.getBody();
+    }
+
+    @Benchmark
+    public byte[] messageFrame() {
+        return Message.frame(content);
+    }
+
+    @Benchmark
+    public ByteBuffer writeFrameDirect() {
+        direct.clear();
+        Message.writeFrame(direct, 42L, content);
+        return direct;
+    }
+
+    @Benchmark
+    public ByteBuffer writeCompactFrameDirect() {
+        direct.clear();
+        Message.writeCompactFrame(direct, 42L, content);
+        return direct;
+    }
+
+    @Benchmark
+    public byte[] byteUtilsEncode() {
+        return ByteUtils.longToBytes(payload);
+    }
+
+    @Benchmark
+    public long byteUtilsDecode() {
+        return ByteUtils.bytesToLong(header);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decodeFrames(Blackhole blackhole) throws IOException {
+        decoder.decode(frames.duplicate());
+        drain(blackhole);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decodeFragmented(Blackhole blackhole) throws IOException {
+        ByteBuffer in = frames.duplicate();
+        int end = in.limit();
+        for (int position = 0; position < end; position += SEGMENT) {
+            in.limit(Math.min(position + SEGMENT, end)).position(position);
+            decoder.decode(in);
+        }
+        drain(blackhole);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decodeCompactFrames(Blackhole blackhole) throws IOException {
+        compactDecoder.decode(compactFrames.duplicate());
+        drain(compactDecoder, blackhole);
+    }
+
+    private void drain(Blackhole blackhole) {
+        drain(decoder, blackhole);
+    }
+
+    private static void drain(SocketHandler decoder, Blackhole blackhole) {
+        Frame frame;
+        while ((frame = decoder.nextFrame()) != null) {
+            blackhole.consume(frame);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.mszf.bench;
+
+import com.mszf.handler.RequestHandler;
+import com.mszf.nio.EventWorker;
+import com.mszf.nio.NioClient;
+import com.mszf.nio.NioServer;
+import com.mszf.util.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Echo requests from a {@link NioClient} to a {@link NioServer} over the loopback interface.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+
+    // The requests in flight at once in the throughput benchmark
+    private static final int BATCH = 64;
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    @Param({"64", "4096", "65536"})
+    public int payload;
+
+    @Param({"1", "8"})
+    public int connections;
+
+    @Param({"true", "false"})
+    public boolean multiplexed;
+
+    private NioServer server;
+
+    private NioClient client;
+
+    private Message message;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        server = new NioServer("127.0.0.1", port, new EventWorker(new RequestHandler() {
+            @Override
+            public byte[] process(byte[] data) {
+                return data;
+            }
+        }));
+        start(server, "bench-server");
+
+        client = new NioClient("127.0.0.1", port, connections, 60000, multiplexed);
+        start(client, "bench-client");
+
+        char[] chars = new char[payload];
+        Arrays.fill(chars, 'x');
+        message = new Message(new String(chars));
+    }
+
+    private static void start(Runnable loop, String name) {
+        Thread thread = new Thread(loop, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+        server.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH)
+    public void echoThroughput() throws Exception {
+        CompletableFuture<?>[] responses = new CompletableFuture<?>[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            responses[i] = client.sendAsync(message, TIMEOUT_MILLIS);
+        }
+        CompletableFuture.allOf(responses).get();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public byte[] echoLatency() throws Exception {
+        return client.sendAsync(message, TIMEOUT_MILLIS).get();
+    }
+}
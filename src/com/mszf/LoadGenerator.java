@@ -0,0 +1,299 @@
+package com.mszf;
+
+import com.mszf.metrics.Histogram;
+import com.mszf.nio.NioClient;
+import com.mszf.util.Message;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntSupplier;
+
+import static com.mszf.util.Constant.CLIENT_KEEP_ALIVE_SECONDS;
+import static com.mszf.util.Constant.HOST;
+import static com.mszf.util.Constant.OVERLOADED;
+import static com.mszf.util.Constant.PORT;
+
+/**
+ * A load generator built on {@link NioClient}, for capacity tests against a server.
+ * <p>
+ * In the closed loop every one of the concurrent users sends its next request once the last one is answered,
+ * the latencies are corrected for the requests not sent while a user waited, taking the mean latency of the
+ * warm-up as the expected interval, so a stall in the measured run doesn't shrink its own correction. Without
+ * a warm-up they're reported uncorrected. In the open loop the requests go out at a fixed rate whatever the responses do, and the
+ * latency of a request counts from the time it was due, so a stalled server shows in the percentiles.
+ * <p>
+ * Options: --host, --port, --mode closed|open, --rate requests per second (open loop), --concurrency users
+ * (closed loop), --connections, --multiplexed true|false, --payload fixed:N|uniform:MIN:MAX|exponential:MEAN,
+ * --duration seconds, --warmup seconds, --timeout millis, --compression the smallest payload compressed.
+ */
+public class LoadGenerator {
+
+    private static final byte[] OVERLOADED_RESPONSE = OVERLOADED.getBytes();
+
+    private final NioClient client;
+
+    private final boolean openLoop;
+
+    private final int rate;
+
+    private final int concurrency;
+
+    private final IntSupplier payloadSize;
+
+    private final long timeoutMillis;
+
+    // A string of the largest payload, the payloads are cut from it
+    private final String payloadSource;
+
+    // Latencies from the time the request was due, in nanoseconds
+    private volatile Histogram latency = new Histogram();
+
+    // Latencies from the time the request was sent
+    private volatile Histogram serviceTime = new Histogram();
+
+    private final LongAdder completed = new LongAdder();
+
+    private final LongAdder errors = new LongAdder();
+
+    // Answered with OVERLOADED by a server shedding load, not counted in the latencies
+    private final LongAdder overloaded = new LongAdder();
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    // The interval a user of the closed loop is expected to send at, the mean latency of the warm-up, 0 if unknown
+    private long expectedIntervalNanos;
+
+    private volatile boolean running = true;
+
+    public LoadGenerator(NioClient client, boolean openLoop, int rate, int concurrency, IntSupplier payloadSize,
+                         int maxPayload, long timeoutMillis) {
+        this.client = client;
+        this.openLoop = openLoop;
+        this.rate = rate;
+        this.concurrency = concurrency;
+        this.payloadSize = payloadSize;
+        this.timeoutMillis = timeoutMillis;
+
+        char[] chars = new char[maxPayload];
+        Arrays.fill(chars, 'x');
+        this.payloadSource = new String(chars);
+    }
+
+    /**
+     * Run the load for the warm-up, reset the measurements, then run it for the duration.
+     *
+     * @param warmupSeconds
+     * @param durationSeconds
+     * @return the report of the measured run
+     * @throws InterruptedException
+     */
+    public String run(int warmupSeconds, int durationSeconds) throws InterruptedException {
+        Thread sender = null;
+        CountDownLatch done = new CountDownLatch(1);
+        if (openLoop) {
+            sender = new Thread(() -> {
+                sendAtFixedRate();
+                done.countDown();
+            }, "load-open-loop");
+            sender.start();
+        } else {
+            for (int i = 0; i < concurrency; i++) {
+                sendNext();
+            }
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+        expectedIntervalNanos = warmupSeconds > 0 && latency.getCount() > 0 ? (long) latency.getMean() : 0;
+        reset();
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+        long elapsed = System.nanoTime() - start;
+        running = false;
+
+        if (sender != null) {
+            done.await();
+        }
+        // let the requests in flight finish, their latencies count
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (outstanding.get() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        return report(elapsed);
+    }
+
+    private void reset() {
+        latency = new Histogram();
+        serviceTime = new Histogram();
+        completed.reset();
+        errors.reset();
+        overloaded.reset();
+    }
+
+    // The closed loop, the next request of a user is sent from the completion of the last one
+    private void sendNext() {
+        if (!running) {
+            return;
+        }
+        long due = System.nanoTime();
+        send(due).whenComplete((ok, cause) -> {
+            if (cause == null) {
+                sendNext();
+            } else {
+                // back off a little, a failure may come at once and the stack would grow
+                CompletableFuture.delayedExecutor(10, TimeUnit.MILLISECONDS).execute(this::sendNext);
+            }
+        });
+    }
+
+    private void sendAtFixedRate() {
+        long period = TimeUnit.SECONDS.toNanos(1) / rate;
+        long next = System.nanoTime();
+        while (running) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+
+            // Behind the schedule the requests due go out at once, late as they are
+            send(next);
+            next += period;
+        }
+    }
+
+    private CompletableFuture<byte[]> send(long due) {
+        Message message = new Message(payloadSource.substring(0, payloadSize.getAsInt()));
+        outstanding.incrementAndGet();
+
+        long sent = System.nanoTime();
+        CompletableFuture<byte[]> response;
+        try {
+            response = client.sendAsync(message, timeoutMillis);
+        } catch (Exception e) {
+            response = new CompletableFuture<>();
+            response.completeExceptionally(e);
+        }
+
+        Histogram latency = this.latency;
+        Histogram serviceTime = this.serviceTime;
+        return response.whenComplete((bytes, cause) -> {
+            long now = System.nanoTime();
+            outstanding.decrementAndGet();
+            if (cause != null) {
+                errors.increment();
+                return;
+            }
+            if (Arrays.equals(bytes, OVERLOADED_RESPONSE)) {
+                overloaded.increment();
+                return;
+            }
+            completed.increment();
+            latency.record(now - due);
+            serviceTime.record(now - sent);
+        });
+    }
+
+    private String report(long elapsedNanos) {
+        Histogram measured = this.latency;
+        boolean uncorrected = !openLoop && expectedIntervalNanos == 0;
+        Histogram corrected = openLoop || uncorrected ? measured
+                : measured.copyCorrectedForCoordinatedOmission(expectedIntervalNanos);
+
+        double seconds = elapsedNanos / 1e9;
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("mode=%s requests=%d errors=%d overloaded=%d throughput=%.1f/s%n",
+                openLoop ? "open" : "closed", completed.sum(), errors.sum(), overloaded.sum(), completed.sum() / seconds));
+        report.append(line(uncorrected ? "uncorrected" : "latency", corrected));
+        report.append(line("service time", serviceTime));
+        if (client.getMetrics().getCompressedBytes() > 0) {
+            report.append(String.format("compression  ratio=%.2f deflate p50=%.3f ms inflate p50=%.3f ms%n",
+                    client.getMetrics().getCompressionRatio(), client.getMetrics().compressNanos.percentile(50) / 1e6,
+                    client.getMetrics().decompressNanos.percentile(50) / 1e6));
+        }
+        return report.toString();
+    }
+
+    private static String line(String name, Histogram histogram) {
+        return String.format("%-12s ms p50=%.3f p99=%.3f p99.9=%.3f max=%.3f%n", name,
+                histogram.percentile(50) / 1e6, histogram.percentile(99) / 1e6,
+                histogram.percentile(99.9) / 1e6, histogram.getMax() / 1e6);
+    }
+
+    /**
+     * @param spec fixed:N, uniform:MIN:MAX or exponential:MEAN
+     * @return the sizes of the payloads
+     */
+    static IntSupplier payloadSize(String spec, int maxPayload) {
+        String[] parts = spec.split(":");
+        switch (parts[0]) {
+            case "fixed":
+                int size = Integer.parseInt(parts[1]);
+                return () -> size;
+            case "uniform":
+                int min = Integer.parseInt(parts[1]);
+                int max = Integer.parseInt(parts[2]);
+                return () -> ThreadLocalRandom.current().nextInt(min, max + 1);
+            case "exponential":
+                double mean = Double.parseDouble(parts[1]);
+                return () -> (int) Math.min(maxPayload, -mean * Math.log(1 - ThreadLocalRandom.current().nextDouble()));
+            default:
+                throw new IllegalArgumentException("Unknown payload distribution: " + spec);
+        }
+    }
+
+    static int maxPayload(String spec) {
+        String[] parts = spec.split(":");
+        switch (parts[0]) {
+            case "fixed":
+                return Integer.parseInt(parts[1]);
+            case "uniform":
+                return Integer.parseInt(parts[2]);
+            default:
+                // the tail of the exponential distribution is cut at ten times the mean
+                return (int) (Double.parseDouble(parts[1]) * 10);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+
+        String host = options.getOrDefault("host", HOST);
+        int port = Integer.parseInt(options.getOrDefault("port", String.valueOf(PORT)));
+        boolean openLoop = "open".equals(options.getOrDefault("mode", "closed"));
+        int rate = Integer.parseInt(options.getOrDefault("rate", "1000"));
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "16"));
+        int connections = Integer.parseInt(options.getOrDefault("connections", "8"));
+        boolean multiplexed = Boolean.parseBoolean(options.getOrDefault("multiplexed", "true"));
+        String payload = options.getOrDefault("payload", "fixed:64");
+        int duration = Integer.parseInt(options.getOrDefault("duration", "30"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        long timeout = Long.parseLong(options.getOrDefault("timeout", "5000"));
+        int compression = Integer.parseInt(options.getOrDefault("compression", "0"));
+
+        // connect
+        NioClient client = new NioClient(host, port, connections, CLIENT_KEEP_ALIVE_SECONDS * 1000L, multiplexed);
+        client.setCompressionThreshold(compression);
+        Thread t = new Thread(client);
+        t.setDaemon(true);
+        t.start();
+
+        int maxPayload = maxPayload(payload);
+        LoadGenerator generator = new LoadGenerator(client, openLoop, rate, concurrency,
+                payloadSize(payload, maxPayload), maxPayload, timeout);
+        System.out.print(generator.run(warmup, duration));
+
+        client.close();
+    }
+}
@@ -40,6 +40,7 @@ public class SimpleServer {
 
     public void stop() {
         try {
+            server.close();
             executorService.shutdownNow();
         } catch (Exception e) {
             e.printStackTrace();
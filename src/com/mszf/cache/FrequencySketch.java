@@ -0,0 +1,92 @@
+package com.mszf.cache;
+
+/**
+ * A count-min sketch of 4-bit counters, estimating how often a key has been seen lately. Each key
+ * takes a counter in four slots, its frequency is the smallest of them. The counters are halved once
+ * as many increments as ten times the slots have been made, so the old popularity fades away.
+ * Not thread-safe, the cache calls it under its lock.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    // The top bit of every counter cleared, to halve them all with one shift
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    // Sixteen counters a long
+    private final long[] table;
+
+    private final int mask;
+
+    private final int sampleSize;
+
+    private int size;
+
+    /**
+     * @param expectedEntries the entries the cache is expected to hold
+     */
+    FrequencySketch(int expectedEntries) {
+        int slots = Integer.highestOneBit(Math.max(64, Math.min(expectedEntries, 1 << 26)) - 1) << 1;
+        this.table = new long[slots];
+        this.mask = slots - 1;
+        this.sampleSize = slots * 10;
+    }
+
+    /**
+     * @param hash the hash of the key
+     * @return the estimated frequency of the key, 15 at most
+     */
+    int frequency(long hash) {
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long h = rehash(hash, i);
+            int shift = counterShift(h);
+            frequency = Math.min(frequency, (int) ((table[slot(h)] >>> shift) & 0xF));
+        }
+        return frequency;
+    }
+
+    /**
+     * Count the key once more, the counters already at 15 stay there.
+     *
+     * @param hash the hash of the key
+     */
+    void increment(long hash) {
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long h = rehash(hash, i);
+            int slot = slot(h);
+            int shift = counterShift(h);
+            if (((table[slot] >>> shift) & 0xF) != 0xF) {
+                table[slot] += 1L << shift;
+                added = true;
+            }
+        }
+
+        if (added && ++size == sampleSize) {
+            reset();
+        }
+    }
+
+    // halve every counter
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size /= 2;
+    }
+
+    private static long rehash(long hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        return h ^ (h >>> 29);
+    }
+
+    private int slot(long h) {
+        return (int) h & mask;
+    }
+
+    private static int counterShift(long h) {
+        return (int) (h >>> 60) << 2;
+    }
+}
@@ -0,0 +1,363 @@
+package com.mszf.cache;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.mszf.util.Constant.RESPONSE_CACHE_AVERAGE_ENTRY_BYTES;
+
+/**
+ * The responses of idempotent requests, keyed by the request payload and bounded by their size in bytes.
+ * <p>
+ * The eviction is W-TinyLFU: a new entry goes to a small LRU window, and when it's pushed out of the
+ * window it competes with the least recently used entry of the main space, the one seen less often
+ * by the {@link FrequencySketch} is evicted. The main space is a segmented LRU, an entry hit in its
+ * probation segment is promoted to the protected one. So a burst of one-off requests can't flush the
+ * popular responses out, while a newly popular one still gets in.
+ * <p>
+ * A lookup doesn't lock, the policy is kept under a lock which a lookup only tries, the recency of
+ * a hit is dropped when the lock is busy rather than waited for. The entries expire a fixed time after
+ * they're written.
+ */
+public class ResponseCache implements ResponseCacheMBean {
+
+    // The bytes an entry takes besides the request and the response
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    private static final int REMOVED = -1;
+
+    private final long maxBytes;
+
+    // 1% of the cache for the window, 80% of the main space for the protected segment
+    private final long windowMaxBytes;
+    private final long protectedMaxBytes;
+
+    private final long ttlNanos;
+
+    private final ConcurrentHashMap<Key, Node> map = new ConcurrentHashMap<>();
+
+    // Guards the policy, the lists, their sizes and the sketch
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final FrequencySketch sketch;
+
+    // The lists of the segments, the least recently used after the sentinel
+    private final Node window = new Node();
+    private final Node probation = new Node();
+    private final Node protectedSegment = new Node();
+
+    private final long[] segmentBytes = new long[3];
+
+    private volatile long weightedBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * @param maxBytes the most bytes of the requests and the responses kept
+     * @param ttlMillis how long a response is kept after it's written, 0 to keep it until it's evicted
+     */
+    public ResponseCache(long maxBytes, long ttlMillis) {
+        if (maxBytes <= 0 || ttlMillis < 0) {
+            throw new IllegalArgumentException("Bad cache bounds: " + maxBytes + ", " + ttlMillis);
+        }
+        this.maxBytes = maxBytes;
+        this.windowMaxBytes = Math.max(1, maxBytes / 100);
+        this.protectedMaxBytes = (maxBytes - windowMaxBytes) * 8 / 10;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, maxBytes / RESPONSE_CACHE_AVERAGE_ENTRY_BYTES));
+
+        for (Node sentinel : new Node[]{window, probation, protectedSegment}) {
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+        }
+    }
+
+    /**
+     * @param request the payload of the request
+     * @return the response cached, or null
+     */
+    public byte[] get(byte[] request) {
+        Key key = new Key(request);
+        Node node = map.get(key);
+        if (node == null) {
+            misses.increment();
+            if (lock.tryLock()) {
+                try {
+                    sketch.increment(key.hash);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return null;
+        }
+
+        if (isExpired(node, System.nanoTime())) {
+            misses.increment();
+            lock.lock();
+            try {
+                if (node.segment != REMOVED) {
+                    remove(node);
+                    expirations.increment();
+                }
+            } finally {
+                lock.unlock();
+            }
+            return null;
+        }
+
+        hits.increment();
+        if (lock.tryLock()) {
+            try {
+                onHit(node);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return node.response;
+    }
+
+    /**
+     * Cache the response, it's not copied so neither array must be changed after.
+     *
+     * @param request the payload of the request
+     * @param response
+     */
+    public void put(byte[] request, byte[] response) {
+        long weight = (long) request.length + response.length + ENTRY_OVERHEAD;
+        if (weight > maxBytes) {
+            return;
+        }
+
+        Node node = new Node(new Key(request), response, weight, System.nanoTime());
+        lock.lock();
+        try {
+            Node existing = map.put(node.key, node);
+            if (existing != null) {
+                unlink(existing);
+            }
+            link(window, node, WINDOW);
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidateAll() {
+        lock.lock();
+        try {
+            for (Node node : map.values()) {
+                unlink(node);
+            }
+            map.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onHit(Node node) {
+        if (node.segment == REMOVED) {
+            return;
+        }
+        sketch.increment(node.key.hash);
+
+        switch (node.segment) {
+            case WINDOW:
+                unlink(node);
+                link(window, node, WINDOW);
+                break;
+            case PROBATION:
+                unlink(node);
+                link(protectedSegment, node, PROTECTED);
+                // the protected overflow is demoted to probation, it's not evicted
+                while (segmentBytes[PROTECTED] > protectedMaxBytes) {
+                    Node demoted = protectedSegment.next;
+                    unlink(demoted);
+                    link(probation, demoted, PROBATION);
+                }
+                break;
+            case PROTECTED:
+                unlink(node);
+                link(protectedSegment, node, PROTECTED);
+                break;
+        }
+    }
+
+    // Called under the lock once an entry is added
+    private void evict() {
+        // The window overflow goes to probation, the most recent last
+        while (segmentBytes[WINDOW] > windowMaxBytes && window.next != window) {
+            Node candidate = window.next;
+            unlink(candidate);
+            link(probation, candidate, PROBATION);
+        }
+
+        long now = System.nanoTime();
+        while (weightedBytes > maxBytes) {
+            Node victim = probation.next;
+            Node candidate = probation.prev;
+            if (victim == probation) {
+                // Nothing on probation, the protected then the window entries go in order
+                victim = protectedSegment.next != protectedSegment ? protectedSegment.next : window.next;
+                evict(victim);
+            } else if (victim == candidate || isExpired(victim, now)) {
+                evict(victim);
+            } else if (isExpired(candidate, now)) {
+                evict(candidate);
+            } else if (sketch.frequency(candidate.key.hash) > sketch.frequency(victim.key.hash)) {
+                evict(victim);
+            } else {
+                evict(candidate);
+            }
+        }
+    }
+
+    private void evict(Node node) {
+        remove(node);
+        evictions.increment();
+    }
+
+    private void remove(Node node) {
+        map.remove(node.key, node);
+        unlink(node);
+    }
+
+    private void link(Node sentinel, Node node, int segment) {
+        node.prev = sentinel.prev;
+        node.next = sentinel;
+        sentinel.prev.next = node;
+        sentinel.prev = node;
+        node.segment = segment;
+        segmentBytes[segment] += node.weight;
+        weightedBytes += node.weight;
+    }
+
+    private void unlink(Node node) {
+        if (node.segment == REMOVED) {
+            return;
+        }
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+        segmentBytes[node.segment] -= node.weight;
+        weightedBytes -= node.weight;
+        node.segment = REMOVED;
+    }
+
+    private boolean isExpired(Node node, long now) {
+        return ttlNanos > 0 && now - node.writeTime > ttlNanos;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = this.hits.sum();
+        long total = hits + misses.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    @Override
+    public long getEntries() {
+        return map.size();
+    }
+
+    @Override
+    public long getWeightedBytes() {
+        return weightedBytes;
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    // The request payload, hashed once
+    private static final class Key {
+
+        final byte[] request;
+
+        final long hash;
+
+        Key(byte[] request) {
+            this.request = request;
+            this.hash = hash(request);
+        }
+
+        // 64-bit FNV-1a, the sketch takes all of it and the map the folded half
+        private static long hash(byte[] bytes) {
+            long h = 0xcbf29ce484222325L;
+            for (byte b : bytes) {
+                h ^= b;
+                h *= 0x100000001b3L;
+            }
+            return h;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hash ^ (hash >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && hash == ((Key) o).hash && Arrays.equals(request, ((Key) o).request);
+        }
+    }
+
+    private static final class Node {
+
+        final Key key;
+
+        final byte[] response;
+
+        final long weight;
+
+        final long writeTime;
+
+        // The rest is only touched under the lock
+        Node prev;
+
+        Node next;
+
+        int segment = REMOVED;
+
+        // a sentinel
+        Node() {
+            this(null, null, 0, 0);
+        }
+
+        Node(Key key, byte[] response, long weight, long writeTime) {
+            this.key = key;
+            this.response = response;
+            this.weight = weight;
+            this.writeTime = writeTime;
+        }
+    }
+}
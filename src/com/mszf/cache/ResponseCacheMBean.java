@@ -0,0 +1,20 @@
+package com.mszf.cache;
+
+public interface ResponseCacheMBean {
+
+    long getHits();
+
+    long getMisses();
+
+    double getHitRatio();
+
+    long getEvictions();
+
+    long getExpirations();
+
+    long getEntries();
+
+    long getWeightedBytes();
+
+    long getMaxBytes();
+}
@@ -0,0 +1,29 @@
+package com.mszf.handler;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A handler taking the requests in batches, for a backend answering a batch far more cheaply than as
+ * many single requests. The worker fills a batch with the requests a reactor reads in one pass of its
+ * loop, or within the linger window, up to the largest batch, see
+ * {@link com.mszf.nio.EventWorker#setBatching(int, long)}. Each response goes back to the connection
+ * of its request.
+ * <p>
+ * A request spilled to a file doesn't wait for a batch, it comes alone through {@link #process(byte[])}.
+ * {@link #processFile(java.nio.ByteBuffer)} isn't called for the requests batched.
+ */
+public abstract class BatchRequestHandler extends RequestHandler {
+
+    /**
+     * @param requests the bodies of the requests
+     * @return the bodies of the responses, in the order of the requests. A null response fails its
+     * request alone, an exception fails them all
+     */
+    public abstract List<byte[]> processBatch(List<byte[]> requests);
+
+    @Override
+    public byte[] process(byte[] data) {
+        return processBatch(Collections.singletonList(data)).get(0);
+    }
+}
@@ -0,0 +1,78 @@
+package com.mszf.handler;
+
+import com.mszf.cache.ResponseCache;
+import com.mszf.nio.ChannelContext;
+import com.mszf.nio.FileRegion;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static com.mszf.util.Constant.RESPONSE_CACHE_MAX_BYTES;
+import static com.mszf.util.Constant.RESPONSE_CACHE_TTL_MILLIS;
+
+/**
+ * Answers the requests from a {@link ResponseCache}, the handler it wraps only runs on a miss. It's for
+ * handlers whose response depends on nothing but the request. The server looks the cache up on the
+ * reactor thread which read the request, so a hit is answered without a worker hand-off.
+ * <p>
+ * A body spilled to a file and a file region response aren't cached, and the handler wrapped doesn't
+ * get the bodies streamed even if it's a {@link StreamingRequestHandler}.
+ */
+public class CachingRequestHandler extends RequestHandler {
+
+    private final RequestHandler handler;
+
+    private final ResponseCache cache;
+
+    public CachingRequestHandler(RequestHandler handler) {
+        this(handler, new ResponseCache(RESPONSE_CACHE_MAX_BYTES, RESPONSE_CACHE_TTL_MILLIS));
+    }
+
+    public CachingRequestHandler(RequestHandler handler, ResponseCache cache) {
+        this.handler = handler;
+        this.cache = cache;
+    }
+
+    public ResponseCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public byte[] process(byte[] data) {
+        byte[] response = cache.get(data);
+        return response != null ? response : processMiss(data);
+    }
+
+    /**
+     * Run the handler for a request already looked up and missed, and cache the response.
+     *
+     * @param data the body of the request
+     * @return the body of the response
+     */
+    public byte[] processMiss(byte[] data) {
+        byte[] response = handler.process(data);
+        if (response != null) {
+            cache.put(data, response);
+        }
+        return response;
+    }
+
+    @Override
+    public byte[] process(ByteBuffer data) {
+        if (!data.hasArray()) {
+            // spilled, too large to be worth caching
+            return handler.process(data);
+        }
+        return super.process(data);
+    }
+
+    @Override
+    public FileRegion processFile(ByteBuffer data) throws IOException {
+        return handler.processFile(data);
+    }
+
+    @Override
+    public void writabilityChanged(ChannelContext context, boolean writable) {
+        handler.writabilityChanged(context, writable);
+    }
+}
@@ -5,15 +5,24 @@ import java.nio.channels.SocketChannel;
 public class RequestContent {
 
     public static final int TYPE_REGISTER = 1;
+    // Add the ops to the interest set
     public static final int TYPE_CHANGE_OPS = 2;
 
     public SocketChannel socket;
     public int type;
     public int ops;
 
+    // The state of the connection, attached to its key on registration
+    public Object attachment;
+
     public RequestContent(SocketChannel socket, int type, int ops) {
+        this(socket, type, ops, null);
+    }
+
+    public RequestContent(SocketChannel socket, int type, int ops, Object attachment) {
         this.socket = socket;
         this.type = type;
         this.ops = ops;
+        this.attachment = attachment;
     }
-}
\ No newline at end of file
+}
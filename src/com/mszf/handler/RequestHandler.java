@@ -1,6 +1,56 @@
 package com.mszf.handler;
 
+import com.mszf.nio.ChannelContext;
+import com.mszf.nio.FileRegion;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public abstract class RequestHandler {
+
+    /**
+     * @param data the body of the request, without the frame header
+     * @return the body of the response
+     */
     public abstract byte[] process(byte[] data);
+
+    /**
+     * Override it to read the body in place, by default the backing array is passed to
+     * {@link #process(byte[])} when the buffer covers all of it. A body spilled to a file comes as a
+     * memory-mapped buffer, it's copied to an array unless it's overridden.
+     *
+     * @param data the body of the request
+     * @return the body of the response
+     */
+    public byte[] process(ByteBuffer data) {
+        if (data.hasArray() && data.arrayOffset() == 0 && data.position() == 0 && data.remaining() == data.array().length) {
+            return process(data.array());
+        }
+
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return process(bytes);
+    }
+
+    /**
+     * Override it to answer with a region of a file, which is sent without being copied into user space.
+     * It's called before {@link #process(ByteBuffer)}, which isn't called when it returns a region.
+     *
+     * @param data the body of the request
+     * @return the region of the response, null to answer with {@link #process(ByteBuffer)}
+     * @throws IOException
+     */
+    public FileRegion processFile(ByteBuffer data) throws IOException {
+        return null;
+    }
+
+    /**
+     * Called when a connection stops being writable, as its responses pile up above the high water mark,
+     * and when it drains below the low water mark. Called by an I/O or worker thread, it should be cheap.
+     *
+     * @param context the connection
+     * @param writable {@link ChannelContext#isWritable()}
+     */
+    public void writabilityChanged(ChannelContext context, boolean writable) {
+    }
 }
@@ -0,0 +1,32 @@
+package com.mszf.handler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The body of one request, handed over in chunks as they're read. The chunks are written by the reactor
+ * thread reading the connection, the request is completed by a worker thread once the body is read.
+ */
+public interface RequestStream {
+
+    /**
+     * Take the next chunk of the body. The chunk is only valid during the call, it's part of the read buffer.
+     *
+     * @param chunk
+     * @throws IOException to close the connection
+     */
+    void write(ByteBuffer chunk) throws IOException;
+
+    /**
+     * The whole body is written.
+     *
+     * @return the body of the response
+     * @throws IOException
+     */
+    byte[] complete() throws IOException;
+
+    /**
+     * The connection is closed before the request completes, what's kept for it should be dropped.
+     */
+    void abort();
+}
@@ -1,16 +1,41 @@
 package com.mszf.handler;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 import static com.mszf.util.Constant.CLIENT_CONNECTION_CHECK_SECONDS;
+import static com.mszf.util.Constant.CONNECT_REFUSED;
 import static com.mszf.util.Constant.TIMEOUT;
 
+/**
+ * The response of a request. It's completed by the client's selector thread, the blocking
+ * {@link #waitAndGet()} is kept as an adapter over {@link #future()}.
+ */
 public class ResponseHandler {
 
-    private byte[] message = null;
+    private final CompletableFuture<byte[]> future = new CompletableFuture<>();
 
     private final long startBlockTime;
 
+    // When the request times out, 0 for never
+    private volatile long deadline;
+
     public ResponseHandler() {
+        this(0);
+    }
+
+    /**
+     * @param timeout milliseconds to wait for the response, 0 for no timeout
+     */
+    public ResponseHandler(long timeout) {
         startBlockTime = System.currentTimeMillis();
+        deadline = timeout > 0 ? startBlockTime + timeout : 0;
+    }
+
+    public CompletableFuture<byte[]> future() {
+        return future;
     }
 
     public boolean isBlocked() {
@@ -21,35 +46,57 @@ public class ResponseHandler {
         return (System.currentTimeMillis() - startBlockTime) > timeout;
     }
 
+    /**
+     * @return when the request times out, 0 for never
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Time the request out at the deadline, set before it's sent.
+     *
+     * @param deadline the time in milliseconds, 0 for never
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
     public void handleMessage(byte[] data) {
-        this.message = data;
+        future.complete(data);
+    }
+
+    public void handleError(Throwable cause) {
+        future.completeExceptionally(cause);
     }
 
     public byte[] waitAndGet() {
-        while(this.message == null) {
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-                System.out.println("ERROR:" + e.getMessage());
-            }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("ERROR:" + e.getMessage());
+            return TIMEOUT.getBytes();
+        } catch (ExecutionException e) {
+            return errorMessage(e.getCause());
         }
-
-        return this.message;
     }
 
     public byte[] waitAndGet(long millis) {
-
-        while(this.message == null) {
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-                System.out.println("ERROR:" + e.getMessage());
-            }
-
-            if (isBlocked(millis)){
-                return TIMEOUT.getBytes();
-            }
+        try {
+            return future.get(millis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("ERROR:" + e.getMessage());
+            return TIMEOUT.getBytes();
+        } catch (TimeoutException e) {
+            return TIMEOUT.getBytes();
+        } catch (ExecutionException e) {
+            return errorMessage(e.getCause());
         }
-        return this.message;
     }
-}
\ No newline at end of file
+
+    private static byte[] errorMessage(Throwable cause) {
+        return cause instanceof TimeoutException ? TIMEOUT.getBytes() : CONNECT_REFUSED.getBytes();
+    }
+}
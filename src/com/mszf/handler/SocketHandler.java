@@ -1,77 +1,418 @@
 package com.mszf.handler;
 
-import com.mszf.util.ByteUtils;
+import com.mszf.util.Frame;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
 
+import static com.mszf.util.Constant.MAX_FRAME_LENGTH;
+import static com.mszf.util.Constant.RECEIVE_BUFFER_INITIAL;
+import static com.mszf.util.Constant.RECEIVE_BUFFER_MAX;
+import static com.mszf.util.Constant.RECEIVE_BUFFER_MIN;
+import static com.mszf.util.Constant.SPILL_DIRECTORY;
+import static java.nio.file.StandardOpenOption.DELETE_ON_CLOSE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static com.mszf.util.Message.COMPACT_MAGIC;
+import static com.mszf.util.Message.FLAG_COMPRESSED;
+import static com.mszf.util.Message.FLAG_DEADLINE;
+import static com.mszf.util.Message.FLAG_REQUEST_ID;
+import static com.mszf.util.Message.HEADER_LENGTH;
+import static com.mszf.util.Message.MAX_COMPACT_HEADER_LENGTH;
+import static com.mszf.util.Message.MULTIPLEX_FLAG;
+import static com.mszf.util.Message.MULTIPLEX_HEADER_LENGTH;
+
+/**
+ * The cumulative frame decoder of a connection. The header of a frame is parsed once, even when it
+ * arrives over several reads, then the body is copied straight into an array sized for it. Every frame
+ * completed by a read is decoded, a pipelining client sends many of them in one read. A body above the
+ * spill threshold goes to a memory-mapped temp file instead, and every body goes to the stream of a
+ * streaming handler when there's one, so the heap used doesn't grow with the size of the body.
+ * <p>
+ * The wire format is told by the first byte of the connection, a compact frame starts with
+ * {@link com.mszf.util.Message#COMPACT_MAGIC}, a legacy one with its 8-byte length header.
+ */
 public class SocketHandler {
 
-    private byte[] result = null;
+    private static final int FORMAT_UNKNOWN = 0;
+    private static final int FORMAT_LEGACY = 1;
+    private static final int FORMAT_COMPACT = 2;
+
+    // The header of the current frame, filled when it arrives in pieces
+    private final ByteBuffer header = ByteBuffer.allocate(Math.max(MULTIPLEX_HEADER_LENGTH, MAX_COMPACT_HEADER_LENGTH));
+
+    private int format = FORMAT_UNKNOWN;
+
+    // The body length of the compact header parsed last
+    private long compactLength;
+
+    // The length of the current body, -1 while reading the header
+    private int bodyLength = -1;
+
+    private int bodyOffset = 0;
+
+    // Where the current body goes, one of them is set
+    private byte[] body;
+    private MappedByteBuffer spill;
+    private RequestStream stream;
+
+    // The bodies longer than it are spilled
+    private final int spillThreshold;
+
+    // null unless the bodies are streamed
+    private final StreamingRequestHandler streamingHandler;
+
+    private boolean multiplexed;
+
+    // The body of the current frame is deflated, it's inflated by the one taking the frame
+    private boolean compressed;
 
-    private long length = 0;
+    private long requestId;
 
-    private long numOfRead = 0;
+    // The deadline of the current frame, see Frame#deadline
+    private long deadline;
 
-    private boolean reading = true;
+    // The frames decoded and not taken yet
+    private final Queue<Frame> frames = new ArrayDeque<>();
+
+    // The size of the next read, adapted to the sizes observed
+    private int receiveSize = RECEIVE_BUFFER_INITIAL;
+
+    // The last read fit in half of the size
+    private boolean shrinkPending = false;
 
     private long start;
 
+    /**
+     * @return true if part of a frame is read
+     */
     public boolean isReading() {
-        return reading;
+        return bodyLength >= 0 || header.position() > 0;
     }
 
-    public void close() {
-        numOfRead = 0;
-        length = 0;
-        reading = false;
+    public SocketHandler() {
+        this(Integer.MAX_VALUE, null);
     }
 
-    public SocketHandler() {
+    /**
+     * @param spillThreshold the bodies longer than it are spilled to a memory-mapped file
+     * @param streamingHandler the handler every body is streamed to, null to decode them into frames
+     */
+    public SocketHandler(int spillThreshold, StreamingRequestHandler streamingHandler) {
+        this.spillThreshold = spillThreshold;
+        this.streamingHandler = streamingHandler;
         start = System.currentTimeMillis();
     }
 
     public int read(SocketChannel socketChannel, ByteBuffer readBuffer) throws IOException{
         // read from channel
         int currentRead = socketChannel.read(readBuffer);
-        if (currentRead < 0) {
-            reading = false;
-            length = 0;
-            return currentRead;
-        }
 
         if (currentRead > 0) {
-            numOfRead = currentRead + numOfRead;
+            record(currentRead, readBuffer.limit());
+            readBuffer.flip();
+            decode(readBuffer);
+        }
+
+        return currentRead;
+    }
 
-            // get header to cal length of bytes
-            if (length == 0) {
-                length = ByteUtils.getLongHeader(readBuffer.array());
+    /**
+     * @return how many bytes the next read should take at most
+     */
+    public int receiveSize() {
+        return receiveSize;
+    }
+
+    /**
+     * Double the size as soon as a read fills the buffer, halve it after two reads in a row fit in half of it.
+     */
+    private void record(int currentRead, int limit) {
+        if (currentRead >= Math.min(receiveSize, limit)) {
+            receiveSize = Math.min(receiveSize << 1, RECEIVE_BUFFER_MAX);
+            shrinkPending = false;
+        } else if (currentRead <= receiveSize >> 1) {
+            if (shrinkPending) {
+                receiveSize = Math.max(receiveSize >> 1, RECEIVE_BUFFER_MIN);
+                shrinkPending = false;
+            } else {
+                shrinkPending = true;
             }
+        } else {
+            shrinkPending = false;
+        }
+    }
 
-            // get bytes from buffer
-            readBuffer.flip();
-            byte[] dataOfBuffer = new byte[readBuffer.limit()];
-            readBuffer.get(dataOfBuffer);
+    /**
+     * Decode the bytes read, the complete frames are queued for {@link #nextFrame()}.
+     *
+     * @param in
+     * @throws IOException if the header is malformed
+     */
+    public void decode(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            if (bodyLength < 0 && !readHeader(in)) {
+                // wait for the rest of the header
+                return;
+            }
 
-            // combine the before read and the current.
-            if (result == null) {
-                result = dataOfBuffer;
+            int n = Math.min(in.remaining(), bodyLength - bodyOffset);
+            if (body != null) {
+                in.get(body, bodyOffset, n);
             } else {
-                result = ByteUtils.combine(result, dataOfBuffer);
+                ByteBuffer chunk = in.slice();
+                chunk.limit(n);
+                if (stream != null) {
+                    stream.write(chunk);
+                } else {
+                    spill.put(chunk);
+                }
+                in.position(in.position() + n);
+            }
+            bodyOffset += n;
+
+            if (bodyOffset == bodyLength) {
+                frames.add(completeFrame());
             }
         }
+    }
 
-        if (numOfRead >= length + Long.BYTES) {
-            close();
-            return 0;
+    private Frame completeFrame() {
+        Frame frame;
+        if (stream != null) {
+            frame = new Frame(multiplexed, requestId, bodyLength, stream);
+        } else if (spill != null) {
+            spill.flip();
+            frame = new Frame(multiplexed, requestId, spill);
+        } else {
+            frame = multiplexed ? new Frame(requestId, body) : new Frame(body);
         }
+        frame.compressed = compressed;
+        frame.deadline = deadline;
 
-        return currentRead;
+        bodyLength = -1;
+        bodyOffset = 0;
+        body = null;
+        spill = null;
+        stream = null;
+        return frame;
+    }
+
+    private boolean readHeader(ByteBuffer in) throws IOException {
+        if (format == FORMAT_UNKNOWN) {
+            format = in.get(in.position()) == COMPACT_MAGIC ? FORMAT_COMPACT : FORMAT_LEGACY;
+        }
+        return format == FORMAT_COMPACT ? readCompactHeader(in) : readLegacyHeader(in);
+    }
+
+    private boolean readLegacyHeader(ByteBuffer in) throws IOException {
+        long lengthHeader;
+        if (header.position() == 0 && in.remaining() >= HEADER_LENGTH) {
+            // the whole length header is here, read it in place
+            lengthHeader = in.getLong(in.position());
+        } else {
+            fill(in, HEADER_LENGTH);
+            if (header.position() < HEADER_LENGTH) {
+                return false;
+            }
+            lengthHeader = header.getLong(0);
+        }
+
+        multiplexed = (lengthHeader & MULTIPLEX_FLAG) != 0;
+        compressed = false;
+        deadline = 0;
+        int headerLength = multiplexed ? MULTIPLEX_HEADER_LENGTH : HEADER_LENGTH;
+
+        if (header.position() == 0 && in.remaining() >= headerLength) {
+            requestId = multiplexed ? in.getLong(in.position() + HEADER_LENGTH) : 0;
+            in.position(in.position() + headerLength);
+        } else {
+            if (header.position() == 0) {
+                fill(in, HEADER_LENGTH);
+            }
+            fill(in, headerLength);
+            if (header.position() < headerLength) {
+                return false;
+            }
+            requestId = multiplexed ? header.getLong(HEADER_LENGTH) : 0;
+        }
+        header.clear();
+
+        return startBody(lengthHeader & ~MULTIPLEX_FLAG);
+    }
+
+    private boolean readCompactHeader(ByteBuffer in) throws IOException {
+        int headerLength;
+        if (header.position() == 0 && (headerLength = parseCompactHeader(in, in.position(), in.limit())) > 0) {
+            // the whole header is here, read it in place
+            in.position(in.position() + headerLength);
+        } else {
+            // gather the header a byte at a time until it parses, it's rare and short
+            do {
+                if (!in.hasRemaining()) {
+                    return false;
+                }
+                header.put(in.get());
+            } while (parseCompactHeader(header, 0, header.position()) < 0);
+            header.clear();
+        }
+
+        return startBody(compactLength);
+    }
+
+    /**
+     * Parse the compact header between the offset and the limit, the length, the flags, the id and the deadline
+     * are kept. The deadline counts from the time the header is parsed.
+     *
+     * @return the length of the header, -1 if it's not complete yet
+     * @throws IOException if the header is malformed
+     */
+    private int parseCompactHeader(ByteBuffer buf, int offset, int limit) throws IOException {
+        if (limit - offset < 2) {
+            return -1;
+        }
+        if (buf.get(offset) != COMPACT_MAGIC) {
+            throw new IOException("Bad frame magic: " + Integer.toHexString(buf.get(offset) & 0xFF));
+        }
+        int flags = buf.get(offset + 1) & 0xFF;
+        if ((flags & ~(FLAG_REQUEST_ID | FLAG_COMPRESSED | FLAG_DEADLINE)) != 0) {
+            throw new IOException("Unknown frame flags: " + Integer.toHexString(flags));
+        }
+
+        int position = offset + 2;
+        long length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (position == limit) {
+                return -1;
+            }
+            if (shift > 28) {
+                throw new IOException("Malformed frame length");
+            }
+            byte b = buf.get(position++);
+            length |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+
+        long id = 0;
+        if ((flags & FLAG_REQUEST_ID) != 0) {
+            for (int shift = 0; ; shift += 7) {
+                if (position == limit) {
+                    return -1;
+                }
+                if (shift > 63) {
+                    throw new IOException("Malformed request id");
+                }
+                byte b = buf.get(position++);
+                id |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+        }
+
+        long timeout = 0;
+        if ((flags & FLAG_DEADLINE) != 0) {
+            for (int shift = 0; ; shift += 7) {
+                if (position == limit) {
+                    return -1;
+                }
+                if (shift > 28) {
+                    throw new IOException("Malformed frame timeout");
+                }
+                byte b = buf.get(position++);
+                timeout |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+        }
+
+        compactLength = length;
+        multiplexed = (flags & FLAG_REQUEST_ID) != 0;
+        compressed = (flags & FLAG_COMPRESSED) != 0;
+        requestId = id;
+        deadline = (flags & FLAG_DEADLINE) != 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+        return position - offset;
+    }
+
+    private boolean startBody(long length) throws IOException {
+        if (length > MAX_FRAME_LENGTH) {
+            throw new IOException("Frame too large: " + length);
+        }
+        bodyLength = (int) length;
+        if (streamingHandler != null && !compressed) {
+            stream = streamingHandler.newStream(bodyLength);
+        } else if (bodyLength > spillThreshold) {
+            spill = spill(bodyLength);
+        } else {
+            body = new byte[bodyLength];
+        }
+        return true;
+    }
+
+    /**
+     * Map a temp file for the body, the file is gone once it's closed but the mapping stays until it's collected.
+     */
+    private static MappedByteBuffer spill(int length) throws IOException {
+        Path file = Files.createTempFile(Paths.get(SPILL_DIRECTORY), "nio-body-", ".tmp");
+        try (FileChannel channel = FileChannel.open(file, READ, WRITE, DELETE_ON_CLOSE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        }
+    }
+
+    // copy from the input until the header holds the given number of bytes
+    private void fill(ByteBuffer in, int length) {
+        while (header.position() < length && in.hasRemaining()) {
+            header.put(in.get());
+        }
+    }
+
+    /**
+     * Take the next frame decoded.
+     *
+     * @return null if no frame is complete
+     */
+    public Frame nextFrame() {
+        return frames.poll();
+    }
+
+    /**
+     * The connection is closed, abort the streams of the requests not handed to the worker.
+     */
+    public void close() {
+        if (stream != null) {
+            stream.abort();
+        }
+
+        Frame frame;
+        while ((frame = frames.poll()) != null) {
+            if (frame.stream != null) {
+                frame.stream.abort();
+            }
+        }
+
+        bodyLength = -1;
+        body = null;
+        spill = null;
+        stream = null;
     }
 
-    public byte[] getBytes() {
-        return result;
+    /**
+     * @return true if the connection speaks the compact format, the responses are framed the same way
+     */
+    public boolean isCompact() {
+        return format == FORMAT_COMPACT;
     }
 
     public long startTime() {
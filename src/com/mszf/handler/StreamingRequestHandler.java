@@ -0,0 +1,32 @@
+package com.mszf.handler;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A handler taking the body of a request in chunks as they're read, so a request isn't held in memory
+ * as a whole however large it is.
+ */
+public abstract class StreamingRequestHandler extends RequestHandler {
+
+    /**
+     * Start a request, called by the reactor thread once its header is read.
+     *
+     * @param length the length of the body
+     * @return the stream the body is written to
+     */
+    public abstract RequestStream newStream(int length);
+
+    @Override
+    public byte[] process(byte[] data) {
+        RequestStream stream = newStream(data.length);
+        try {
+            stream.write(ByteBuffer.wrap(data));
+            return stream.complete();
+        } catch (IOException e) {
+            stream.abort();
+            throw new UncheckedIOException(e);
+        }
+    }
+}
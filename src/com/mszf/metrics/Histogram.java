@@ -0,0 +1,159 @@
+package com.mszf.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative values, bucketed the HDR way: values below 64 get a bucket each,
+ * above that every power of two is split into 32 buckets, so a percentile is off by at most 1/32 of its
+ * value. Recording is one atomic increment of the bucket and a striped add, any thread can record.
+ */
+public class Histogram implements HistogramMBean {
+
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // 64 exact buckets, then 32 buckets for each of the 58 powers of two above
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + 2 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sum = new LongAdder();
+
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        record(value, 1);
+    }
+
+    /**
+     * Record the value as many times as the count.
+     *
+     * @param value
+     * @param n
+     */
+    public void record(long value, long n) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        counts.addAndGet(index(value), n);
+        count.add(n);
+        sum.add(value * n);
+
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // another thread raised it
+        }
+    }
+
+    static int index(long value) {
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1;
+        if (shift <= 0) {
+            return (int) value;
+        }
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    // the highest value counted in the bucket
+    static long highestValue(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index >> SUB_BUCKET_BITS) - 1;
+        long subBucket = index - ((long) shift << SUB_BUCKET_BITS);
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Copy the histogram of the latencies measured by a closed-loop client, with the samples it missed while
+     * it waited for a slow response. A value longer than the expected interval between the requests stands
+     * for the requests which would have been sent meanwhile, at the value less one interval, less two, and so on.
+     *
+     * @param expectedInterval the expected interval between the requests, in the unit of the values
+     * @return the corrected copy
+     */
+    public Histogram copyCorrectedForCoordinatedOmission(long expectedInterval) {
+        Histogram corrected = new Histogram();
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = counts.get(i);
+            if (n == 0) {
+                continue;
+            }
+
+            long value = Math.min(highestValue(i), max.get());
+            corrected.record(value, n);
+            if (expectedInterval <= 0) {
+                continue;
+            }
+            for (long missing = value - expectedInterval; missing >= expectedInterval; missing -= expectedInterval) {
+                corrected.record(missing, n);
+            }
+        }
+        return corrected;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the value which the given percent of the values recorded are at or below, 0 if nothing is recorded
+     */
+    public long percentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    @Override
+    public long getMax() {
+        return max.get();
+    }
+
+    @Override
+    public long getP50() {
+        return percentile(50);
+    }
+
+    @Override
+    public long getP90() {
+        return percentile(90);
+    }
+
+    @Override
+    public long getP99() {
+        return percentile(99);
+    }
+
+    @Override
+    public long getP999() {
+        return percentile(99.9);
+    }
+}
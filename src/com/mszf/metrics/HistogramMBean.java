@@ -0,0 +1,18 @@
+package com.mszf.metrics;
+
+public interface HistogramMBean {
+
+    long getCount();
+
+    double getMean();
+
+    long getMax();
+
+    long getP50();
+
+    long getP90();
+
+    long getP99();
+
+    long getP999();
+}
@@ -0,0 +1,217 @@
+package com.mszf.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The instrumentation of a server or a client. The counters are striped and the histograms lock-free,
+ * so every I/O and worker thread records without contention. Times are in nanoseconds. Once registered,
+ * the counters and gauges are published as one MBean and every histogram as an MBean of its own.
+ */
+public class NioMetrics implements NioMetricsMBean {
+
+    // Reading a channel and decoding the frames read
+    public final Histogram decodeNanos = new Histogram();
+
+    // A request waiting for a worker thread
+    public final Histogram queueWaitNanos = new Histogram();
+
+    // The handler running on a request
+    public final Histogram handlerNanos = new Histogram();
+
+    // The data queued for a channel waiting to be written
+    public final Histogram writeQueueWaitNanos = new Histogram();
+
+    // A turn of a selector loop, from the wake up on
+    public final Histogram selectLoopNanos = new Histogram();
+
+    public final Histogram keysPerSelect = new Histogram();
+
+    // The requests handed to a batch handler at once
+    public final Histogram batchSize = new Histogram();
+
+    // Deflating a payload sent, and inflating one received
+    public final Histogram compressNanos = new Histogram();
+    public final Histogram decompressNanos = new Histogram();
+
+    public final LongAdder bytesIn = new LongAdder();
+
+    public final LongAdder bytesOut = new LongAdder();
+
+    // The payloads deflated or inflated, at their full and compressed sizes
+    public final LongAdder uncompressedBytes = new LongAdder();
+    public final LongAdder compressedBytes = new LongAdder();
+
+    // Bytes handed over to the channels and not written yet
+    public final LongAdder pendingOutboundBytes = new LongAdder();
+
+    // Selector wake ups, only the first hand-over to a sleeping loop pays for one
+    public final LongAdder wakeups = new LongAdder();
+
+    private volatile LongSupplier openConnections = () -> 0;
+
+    private volatile LongSupplier inFlightRequests = () -> 0;
+
+    private volatile LongSupplier workerQueueDepth = () -> 0;
+
+    private volatile LongSupplier shedRequests = () -> 0;
+
+    private volatile LongSupplier expiredRequests = () -> 0;
+
+    // Other MBeans published along, by the name of the component
+    private final Map<String, Object> components = new LinkedHashMap<>();
+
+    private final List<ObjectName> registered = new ArrayList<>();
+
+    public void setOpenConnections(LongSupplier openConnections) {
+        this.openConnections = openConnections;
+    }
+
+    public void setInFlightRequests(LongSupplier inFlightRequests) {
+        this.inFlightRequests = inFlightRequests;
+    }
+
+    public void setWorkerQueueDepth(LongSupplier workerQueueDepth) {
+        this.workerQueueDepth = workerQueueDepth;
+    }
+
+    public void setShedRequests(LongSupplier shedRequests) {
+        this.shedRequests = shedRequests;
+    }
+
+    public void setExpiredRequests(LongSupplier expiredRequests) {
+        this.expiredRequests = expiredRequests;
+    }
+
+    /**
+     * Publish another MBean along with the metrics, it's to be added before they're registered.
+     *
+     * @param name
+     * @param mbean
+     */
+    public synchronized void addComponent(String name, Object mbean) {
+        components.put(name, mbean);
+    }
+
+    public Map<String, Histogram> histograms() {
+        Map<String, Histogram> histograms = new LinkedHashMap<>();
+        histograms.put("decodeNanos", decodeNanos);
+        histograms.put("queueWaitNanos", queueWaitNanos);
+        histograms.put("handlerNanos", handlerNanos);
+        histograms.put("writeQueueWaitNanos", writeQueueWaitNanos);
+        histograms.put("selectLoopNanos", selectLoopNanos);
+        histograms.put("keysPerSelect", keysPerSelect);
+        histograms.put("batchSize", batchSize);
+        histograms.put("compressNanos", compressNanos);
+        histograms.put("decompressNanos", decompressNanos);
+        return histograms;
+    }
+
+    /**
+     * Publish the metrics on the platform MBean server, as com.mszf.nio:type=...,name=...
+     *
+     * @param type Server or Client
+     * @param name the name of the endpoint, it's quoted
+     */
+    public synchronized void register(String type, String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String prefix = "com.mszf.nio:type=" + type + ",name=" + ObjectName.quote(name);
+        try {
+            register(server, new ObjectName(prefix), this);
+            for (Map.Entry<String, Histogram> entry : histograms().entrySet()) {
+                register(server, new ObjectName(prefix + ",histogram=" + entry.getKey()), entry.getValue());
+            }
+            for (Map.Entry<String, Object> entry : components.entrySet()) {
+                register(server, new ObjectName(prefix + ",component=" + entry.getKey()), entry.getValue());
+            }
+        } catch (JMException e) {
+            System.out.println("ERROR:" + e.getMessage());
+        }
+    }
+
+    private void register(MBeanServer server, ObjectName objectName, Object mbean) throws JMException {
+        server.registerMBean(mbean, objectName);
+        registered.add(objectName);
+    }
+
+    public synchronized void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName objectName : registered) {
+            try {
+                server.unregisterMBean(objectName);
+            } catch (JMException e) {
+                System.out.println("ERROR:" + e.getMessage());
+            }
+        }
+        registered.clear();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getUncompressedBytes() {
+        return uncompressedBytes.sum();
+    }
+
+    @Override
+    public long getCompressedBytes() {
+        return compressedBytes.sum();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long compressed = compressedBytes.sum();
+        return compressed == 0 ? 0 : (double) uncompressedBytes.sum() / compressed;
+    }
+
+    @Override
+    public long getOpenConnections() {
+        return openConnections.getAsLong();
+    }
+
+    @Override
+    public long getInFlightRequests() {
+        return inFlightRequests.getAsLong();
+    }
+
+    @Override
+    public long getPendingOutboundBytes() {
+        return pendingOutboundBytes.sum();
+    }
+
+    @Override
+    public long getWakeups() {
+        return wakeups.sum();
+    }
+
+    @Override
+    public long getWorkerQueueDepth() {
+        return workerQueueDepth.getAsLong();
+    }
+
+    @Override
+    public long getShedRequests() {
+        return shedRequests.getAsLong();
+    }
+
+    @Override
+    public long getExpiredRequests() {
+        return expiredRequests.getAsLong();
+    }
+}
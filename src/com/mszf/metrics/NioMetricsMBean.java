@@ -0,0 +1,32 @@
+package com.mszf.metrics;
+
+public interface NioMetricsMBean {
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getUncompressedBytes();
+
+    long getCompressedBytes();
+
+    // the uncompressed bytes over the compressed ones, of the payloads compressed
+    double getCompressionRatio();
+
+    long getOpenConnections();
+
+    long getInFlightRequests();
+
+    long getPendingOutboundBytes();
+
+    // the selector wake ups asked by the threads handing work over to a sleeping I/O loop
+    long getWakeups();
+
+    long getWorkerQueueDepth();
+
+    // the requests answered with OVERLOADED at once, and the ones answered with TIMEOUT unprocessed
+    // as their senders had given up on them
+    long getShedRequests();
+
+    long getExpiredRequests();
+}
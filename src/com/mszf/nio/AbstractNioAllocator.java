@@ -2,91 +2,444 @@ package com.mszf.nio;
 
 import com.mszf.handler.SocketHandler;
 import com.mszf.handler.RequestContent;
+import com.mszf.metrics.NioMetrics;
+import com.mszf.util.MpscQueue;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.mszf.util.Constant.SELECT_SPIN_ITERATIONS;
+import static com.mszf.util.Constant.SELECT_WAIT_STRATEGY;
+import static com.mszf.util.Constant.SELECT_YIELD_ITERATIONS;
+import static com.mszf.util.Constant.WRITE_BUFFER_HIGH_WATER_MARK;
+import static com.mszf.util.Constant.WRITE_BUFFER_LOW_WATER_MARK;
+import static com.mszf.util.Constant.WRITE_FLUSH_BYTES;
+import static com.mszf.util.Constant.WRITE_GATHER_MAX;
 
 public abstract class AbstractNioAllocator implements Runnable {
 
-    // The buffer into which we'll read data when it's available
-    protected ByteBuffer readBuffer = ByteBuffer.allocate(1024 * 1024);
+    // Block in select until an event, a hand-over or the timeout
+    public static final int WAIT_BLOCKING = 1;
+    // Spin on selectNow, the selecting thread keeps its core for the lowest latency and never needs a wake up
+    public static final int WAIT_BUSY_SPIN = 2;
+    // Spin on selectNow a while, then yield a while, then block
+    public static final int WAIT_BACKOFF = 3;
+
+    // The selector we'll be monitoring
+    protected final Selector selector;
+
+    // The direct buffers we read into and write from
+    protected BufferPool bufferPool = BufferPool.getDefault();
+
+    // The changes asked by other threads, applied by the selecting thread
+    protected MpscQueue<RequestContent> pendingChanges = new MpscQueue<>();
+
+    // The outbound water marks of each connection
+    protected volatile int writeHighWaterMark = WRITE_BUFFER_HIGH_WATER_MARK;
+    protected volatile int writeLowWaterMark = WRITE_BUFFER_LOW_WATER_MARK;
+
+    // How the selecting thread waits for events
+    private volatile int waitStrategy = SELECT_WAIT_STRATEGY;
 
-    // A list of PendingChange instances
-    protected List<RequestContent> pendingChanges = new LinkedList<>();
+    // False only while the selecting thread blocks, or is about to, so only the first hand-over wakes it up
+    private final AtomicBoolean awake = new AtomicBoolean(true);
 
-    // Maps a SocketChannel to a list of ByteBuffer instances
-    protected Map<SocketChannel, List<ByteBuffer>> pendingData = new HashMap<>();
+    // The buffers gathered into one write, only used by the selecting thread
+    private final ByteBuffer[] gathered = new ByteBuffer[WRITE_GATHER_MAX];
 
-    // Maps a SocketChannel to a handler for reading instances
-    protected Map<SocketChannel, SocketHandler> readingData = new HashMap<>();
+    // The instrumentation of the I/O loop
+    protected final NioMetrics metrics;
 
-    protected byte[] readData(SelectionKey key) throws IOException{
+    protected AbstractNioAllocator() throws IOException {
+        this(new NioMetrics());
+    }
+
+    protected AbstractNioAllocator(NioMetrics metrics) throws IOException {
+        this.selector = SelectorProvider.provider().openSelector();
+        this.metrics = metrics;
+    }
+
+    /**
+     * Read off the channel, the frames completed are taken from the decoder of its context.
+     *
+     * @param key
+     * @return false if the channel is closed
+     * @throws IOException
+     */
+    protected boolean readData(SelectionKey key) throws IOException{
         SocketChannel socketChannel = (SocketChannel) key.channel();
-        // Clear out our read buffer so it's ready for new data
-        this.readBuffer.clear();
+        ChannelContext context = (ChannelContext) key.attachment();
 
         // Handle the channel
-        SocketHandler socketHandler = readingData.get(socketChannel);
-        if (socketHandler == null) {
-            socketHandler = new SocketHandler();
-            synchronized (readingData) {
-                readingData.put(socketChannel, socketHandler);
-            }
-        }
+        SocketHandler socketHandler = context.decoder;
+
+        // Read into a direct buffer sized for the connection, it's decoded before going back to the pool
+        PooledBuffer readBuffer = this.bufferPool.allocate(socketHandler.receiveSize());
+        readBuffer.buffer().limit(socketHandler.receiveSize());
 
         // Attempt to read off the channel
         int currentRead = 0;
+        long start = System.nanoTime();
         try {
-            currentRead = socketHandler.read(socketChannel, readBuffer);
+            currentRead = socketHandler.read(socketChannel, readBuffer.buffer());
+            if (currentRead > 0) {
+                this.metrics.decodeNanos.record(System.nanoTime() - start);
+                this.metrics.bytesIn.add(currentRead);
+            }
         } catch (IOException e) {
             // The remote forcibly closed the connection, cancel the selection key and close the channel.
-            key.cancel();
-            socketChannel.close();
-            return null;
+            closeChannel(key);
+            return false;
         } finally {
+            readBuffer.release();
             if (currentRead < 0) {
                 // Remote entity shut the socket down cleanly. Do the
                 // same from our end and cancel the channel.
-                key.channel().close();
-                key.cancel();
-                return null;
+                closeChannel(key);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hand the buffer over to the channel, it's safe to call from any thread. The buffer is released once
+     * it's written. Only the first hand-over since the last flush asks the selecting thread for writing.
+     *
+     * @param context
+     * @param data
+     */
+    protected void queueData(ChannelContext context, PooledBuffer data) {
+        queueData(context, data, true);
+    }
+
+    /**
+     * Hand the buffer over to the channel, like {@link #queueData(ChannelContext, PooledBuffer)}.
+     *
+     * @param context
+     * @param data
+     * @param flush false to hold it back until {@link #flush(ChannelContext)}, so many buffers go out
+     *              in one write for one wake up of the selecting thread
+     */
+    protected void queueData(ChannelContext context, PooledBuffer data, boolean flush) {
+        enqueue(context, data, data.buffer().remaining(), flush);
+    }
+
+    /**
+     * Hand the file region over to the channel, like {@link #queueData(ChannelContext, PooledBuffer)}.
+     * The region counts against the water marks as the buffers do.
+     *
+     * @param context
+     * @param region
+     */
+    protected void queueFile(ChannelContext context, FileRegion region) {
+        enqueue(context, region, region.remaining(), true);
+    }
+
+    private void enqueue(ChannelContext context, Outbound data, long bytes, boolean flush) {
+        if (!context.isOpen()) {
+            data.release();
+            return;
+        }
+
+        long pending = context.pendingBytes.addAndGet(bytes);
+        this.metrics.pendingOutboundBytes.add(bytes);
+        context.outbound.offer(data);
+
+        if (!context.isOpen()) {
+            // Closed since the check above, the close may have drained the queue before the data got in
+            releaseOutbound(context);
+            return;
+        }
+
+        if (pending > this.writeHighWaterMark && context.writable.compareAndSet(true, false)) {
+            writabilityChanged(context, false);
+        }
+
+        if (flush) {
+            flush(context);
+        }
+    }
+
+    /**
+     * Ask the selecting thread to write what's been handed over to the channel, it's safe to call from any thread.
+     *
+     * @param context
+     */
+    protected void flush(ChannelContext context) {
+        if (context.flushScheduled.compareAndSet(false, true)) {
+            context.flushRequested = System.nanoTime();
+            this.pendingChanges.offer(new RequestContent(context.channel, RequestContent.TYPE_CHANGE_OPS, SelectionKey.OP_WRITE, context));
+            wakeup();
+        }
+    }
+
+    /**
+     * Wake the selecting thread up if it's blocked, or about to be, it's safe to call from any thread. Call it
+     * after handing the work over, a loop which is awake finds the work before it blocks again. The hand-over
+     * must end with a volatile store, as {@link MpscQueue#offer(Object)} does, so it's ordered before the read
+     * of the flag against the selecting thread clearing the flag before it checks for work.
+     */
+    protected void wakeup() {
+        if (!this.awake.get() && this.awake.compareAndSet(false, true)) {
+            this.metrics.wakeups.increment();
+            this.selector.wakeup();
+        }
+    }
+
+    /**
+     * Wait for events of the channels as the wait strategy does, called by the selecting thread.
+     *
+     * @param timeout in milliseconds, the longest the thread waits
+     * @return the number of keys selected
+     * @throws IOException
+     */
+    protected int select(long timeout) throws IOException {
+        int strategy = this.waitStrategy;
+        if (strategy != WAIT_BLOCKING) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            for (int i = 0; strategy == WAIT_BUSY_SPIN || i < SELECT_SPIN_ITERATIONS + SELECT_YIELD_ITERATIONS; i++) {
+                int keyNums = this.selector.selectNow();
+                if (keyNums > 0 || hasPendingWork() || System.nanoTime() - deadline >= 0) {
+                    return keyNums;
+                }
+                if (i < SELECT_SPIN_ITERATIONS) {
+                    Thread.onSpinWait();
+                } else {
+                    Thread.yield();
+                }
+            }
+        }
+
+        // From now on a hand-over wakes us up, unless it's come already
+        this.awake.set(false);
+        try {
+            return hasPendingWork() ? this.selector.selectNow() : this.selector.select(timeout);
+        } finally {
+            this.awake.set(true);
+        }
+    }
+
+    /**
+     * Whether work has been handed over to the selecting thread since it last looked, called by it before
+     * waiting for events. Subclasses add the work they're woken up for.
+     *
+     * @return
+     */
+    protected boolean hasPendingWork() {
+        return !this.pendingChanges.isEmpty();
+    }
+
+    /**
+     * Set how the selecting thread waits for events.
+     *
+     * @param waitStrategy {@link #WAIT_BLOCKING}, {@link #WAIT_BUSY_SPIN} or {@link #WAIT_BACKOFF}
+     */
+    public void setWaitStrategy(int waitStrategy) {
+        if (waitStrategy < WAIT_BLOCKING || waitStrategy > WAIT_BACKOFF) {
+            throw new IllegalArgumentException("Unknown wait strategy: " + waitStrategy);
+        }
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Called when the connection crosses the high water mark up, or the low water mark down, by the thread
+     * crossing it. That's the thread queueing the data or the selecting thread, so it should be cheap.
+     *
+     * @param context
+     * @param writable
+     */
+    protected void writabilityChanged(ChannelContext context, boolean writable) {
+    }
+
+    /**
+     * Set the outbound water marks of the connections.
+     *
+     * @param low the pending bytes a connection is writable again below
+     * @param high the pending bytes a connection isn't writable above
+     */
+    public void setWriteBufferWaterMark(int low, int high) {
+        if (low < 0 || high < low) {
+            throw new IllegalArgumentException("Bad water marks: " + low + ", " + high);
+        }
+        this.writeLowWaterMark = low;
+        this.writeHighWaterMark = high;
+    }
+
+    /**
+     * Apply the changes asked by other threads, called by the selecting thread.
+     *
+     * @throws IOException
+     */
+    protected void processChanges() throws IOException {
+        RequestContent change;
+        while ((change = this.pendingChanges.poll()) != null) {
+            switch (change.type) {
+                case RequestContent.TYPE_CHANGE_OPS:
+                    SelectionKey key = ((ChannelContext) change.attachment).key;
+                    // the channel may be closed before the change is applied
+                    if (key != null && key.isValid()) {
+                        key.interestOps(key.interestOps() | change.ops);
+                    }
+                    break;
+                case RequestContent.TYPE_REGISTER:
+                    ChannelContext context = (ChannelContext) change.attachment;
+                    if (change.socket.isOpen()) {
+                        context.key = change.socket.register(this.selector, change.ops, context);
+                    }
+                    registered(context);
+                    break;
             }
         }
+    }
 
-        return socketHandler.getBytes();
+    /**
+     * Called by the selecting thread once the channel is registered, or found closed before that.
+     *
+     * @param context
+     */
+    protected void registered(ChannelContext context) {
     }
 
+    /**
+     * Flush the queue of the channel with gathering writes, so the buffers queued since the last pass go out
+     * in one syscall. A file region is transferred on its own, it goes on where it stopped on the next pass
+     * when the socket's buffer fills up. At most {@link com.mszf.util.Constant#WRITE_FLUSH_BYTES} are written in a pass, the rest
+     * waits for the next pass to keep the other channels of the selector served. A channel failing to write is
+     * closed, and what's queued for it released.
+     *
+     * @param key
+     * @throws IOException
+     */
     protected void writeData(SelectionKey key) throws IOException {
-        SocketChannel socketChannel = (SocketChannel) key.channel();
+        try {
+            writeQueue(key);
+        } catch (IOException e) {
+            // The remote closed the connection, or a file region can't be read
+            closeChannel(key);
+        }
+    }
 
-        synchronized (this.pendingData) {
-            // check the channel
-            if (!this.pendingData.containsKey(socketChannel)) return;
+    private void writeQueue(SelectionKey key) throws IOException {
+        SocketChannel socketChannel = (SocketChannel) key.channel();
+        ChannelContext context = (ChannelContext) key.attachment();
+        Deque<Outbound> queue = context.writing;
 
-            List<ByteBuffer> queue = this.pendingData.get(socketChannel);
+        // Take what's been handed over
+        Outbound handed;
+        while ((handed = context.outbound.poll()) != null) {
+            queue.add(handed);
+        }
 
-            // Write until there's not more data ...
-            while (!queue.isEmpty()) {
-                ByteBuffer buf = queue.get(0);
-                socketChannel.write(buf);
-                if (buf.remaining() > 0) {
+        // Write until there's not more data, the flush budget is spent ...
+        long budget = WRITE_FLUSH_BYTES;
+        while (!queue.isEmpty() && budget > 0) {
+            if (queue.peekFirst() instanceof FileRegion) {
+                FileRegion region = (FileRegion) queue.peekFirst();
+                long written = region.transferTo(socketChannel, budget);
+                budget -= written;
+                written(context, written);
+                if (!region.isDone()) {
                     // ... or the socket's buffer fills up
                     break;
                 }
-                queue.remove(0);
+                queue.pollFirst().release();
+                continue;
+            }
+
+            int count = 0;
+            long bytes = 0;
+            for (Outbound data : queue) {
+                if (count == gathered.length || bytes >= budget || !(data instanceof PooledBuffer)) {
+                    break;
+                }
+                ByteBuffer buffer = ((PooledBuffer) data).buffer();
+                gathered[count++] = buffer;
+                bytes += buffer.remaining();
+            }
+
+            long written = socketChannel.write(gathered, 0, count);
+            Arrays.fill(gathered, 0, count, null);
+            budget -= written;
+            written(context, written);
+
+            // Release what's written away
+            while (!queue.isEmpty() && queue.peekFirst() instanceof PooledBuffer
+                    && !((PooledBuffer) queue.peekFirst()).buffer().hasRemaining()) {
+                queue.pollFirst().release();
+            }
+
+            if (written < bytes) {
+                // ... or the socket's buffer fills up
+                break;
+            }
+        }
+
+        if (queue.isEmpty()) {
+            // We wrote away all data, so we're no longer interested
+            // in writing on this socket, unless a hand-over raced with us.
+            long now = System.nanoTime();
+            this.metrics.writeQueueWaitNanos.record(now - context.flushRequested);
+
+            context.flushScheduled.set(false);
+            if (context.outbound.isEmpty() || !context.flushScheduled.compareAndSet(false, true)) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } else {
+                context.flushRequested = now;
             }
+        }
+    }
+
+    private void written(ChannelContext context, long written) {
+        this.metrics.bytesOut.add(written);
+        this.metrics.pendingOutboundBytes.add(-written);
+
+        long pending = context.pendingBytes.addAndGet(-written);
+        if (pending < this.writeLowWaterMark && context.writable.compareAndSet(false, true)) {
+            writabilityChanged(context, true);
+        }
+    }
+
+    /**
+     * Cancel the key and close its channel, subclasses can hook in here to release
+     * the state they keep for the connection.
+     *
+     * @param key
+     * @throws IOException
+     */
+    protected void closeChannel(SelectionKey key) throws IOException {
+        key.cancel();
+        key.channel().close();
+
+        // Abort the requests read in part, release the buffers not written
+        ChannelContext context = (ChannelContext) key.attachment();
+        if (context != null) {
+            context.decoder.close();
+
+            context.writing.forEach(Outbound::release);
+            context.writing.clear();
+
+            releaseOutbound(context);
+        }
+    }
+
+    // Release what's been handed over to a closed channel. Both the selecting thread closing it and a producer
+    // racing with the close drain the queue, the lock keeps it to one consumer at a time
+    private void releaseOutbound(ChannelContext context) {
+        synchronized (context.outbound) {
+            this.metrics.pendingOutboundBytes.add(-context.pendingBytes.getAndSet(0));
 
-            if (queue.isEmpty()) {
-                // We wrote away all data, so we're no longer interested
-                // in writing on this socket. Switch back to waiting for
-                // data.
-                key.interestOps(SelectionKey.OP_READ);
+            Outbound data;
+            while ((data = context.outbound.poll()) != null) {
+                data.release();
             }
         }
     }
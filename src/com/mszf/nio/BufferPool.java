@@ -0,0 +1,165 @@
+package com.mszf.nio;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.mszf.util.Constant.BUFFER_POOL_MAX_CACHED_BYTES;
+import static com.mszf.util.Constant.BUFFER_POOL_MAX_SIZE;
+import static com.mszf.util.Constant.BUFFER_POOL_MIN_SIZE;
+import static com.mszf.util.Constant.BUFFER_POOL_SLAB_SIZE;
+
+/**
+ * A size-classed pool of direct buffers. The size classes are powers of two from the minimum to the maximum
+ * size, a class runs out of buffers is refilled by slicing a slab of direct memory, so the direct memory is
+ * allocated in few large pieces. A request above the maximum size gets a direct buffer of its own, which
+ * isn't pooled. It's safe to allocate and release from any thread.
+ */
+public class BufferPool {
+
+    private static final BufferPool DEFAULT = new BufferPool(BUFFER_POOL_MIN_SIZE, BUFFER_POOL_MAX_SIZE,
+            BUFFER_POOL_SLAB_SIZE, BUFFER_POOL_MAX_CACHED_BYTES);
+
+    private final int minSize;
+
+    private final int slabSize;
+
+    private final long maxCachedBytes;
+
+    // The free buffers of each size class
+    private final Queue<ByteBuffer>[] freeLists;
+
+    // Direct memory allocated by the pool, slabs and unpooled buffers
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    // Memory of the buffers handed out and not released yet
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    // Memory of the free buffers kept for reuse
+    private final AtomicLong cachedBytes = new AtomicLong();
+
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @param minSize the smallest size class
+     * @param maxSize the largest size class, both are rounded up to powers of two
+     * @param slabSize the direct memory allocated at once to refill a size class
+     * @param maxCachedBytes the most memory of the free buffers kept for reuse
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int minSize, int maxSize, int slabSize, long maxCachedBytes) {
+        this.minSize = roundUp(minSize);
+        this.slabSize = slabSize;
+        this.maxCachedBytes = maxCachedBytes;
+
+        int classes = Integer.numberOfTrailingZeros(roundUp(maxSize)) - Integer.numberOfTrailingZeros(this.minSize) + 1;
+        this.freeLists = new Queue[classes];
+        for (int i = 0; i < classes; i++) {
+            this.freeLists[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /**
+     * Take a cleared buffer of at least the given capacity.
+     *
+     * @param capacity
+     * @return
+     */
+    public PooledBuffer allocate(int capacity) {
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass < 0) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+            allocatedBytes.addAndGet(capacity);
+            usedBytes.addAndGet(capacity);
+            return new PooledBuffer(this, -1, buffer);
+        }
+
+        ByteBuffer buffer = freeLists[sizeClass].poll();
+        if (buffer != null) {
+            cachedBytes.addAndGet(-buffer.capacity());
+        } else {
+            buffer = refill(sizeClass);
+        }
+
+        usedBytes.addAndGet(buffer.capacity());
+        return new PooledBuffer(this, sizeClass, buffer);
+    }
+
+    void recycle(PooledBuffer pooled) {
+        ByteBuffer buffer = pooled.buffer();
+        usedBytes.addAndGet(-buffer.capacity());
+
+        if (pooled.sizeClass < 0) {
+            // left to the GC
+            allocatedBytes.addAndGet(-buffer.capacity());
+            return;
+        }
+
+        if (cachedBytes.get() + buffer.capacity() > maxCachedBytes) {
+            // The pool is full, the memory goes back when the rest of its slab is dropped as well
+            allocatedBytes.addAndGet(-buffer.capacity());
+            return;
+        }
+
+        buffer.clear();
+        cachedBytes.addAndGet(buffer.capacity());
+        freeLists[pooled.sizeClass].offer(buffer);
+    }
+
+    /**
+     * Slice a new slab into buffers of the class, one is returned and the others are kept for reuse.
+     */
+    private ByteBuffer refill(int sizeClass) {
+        int size = minSize << sizeClass;
+        int count = Math.max(1, slabSize / size);
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(size * count);
+        allocatedBytes.addAndGet((long) size * count);
+
+        ByteBuffer first = null;
+        for (int i = 0; i < count; i++) {
+            slab.limit((i + 1) * size).position(i * size);
+            ByteBuffer buffer = slab.slice();
+            if (first == null) {
+                first = buffer;
+            } else {
+                cachedBytes.addAndGet(size);
+                freeLists[sizeClass].offer(buffer);
+            }
+        }
+        return first;
+    }
+
+    private int sizeClass(int capacity) {
+        int size = roundUp(Math.max(capacity, minSize));
+        int sizeClass = Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(minSize);
+        return sizeClass < freeLists.length ? sizeClass : -1;
+    }
+
+    private static int roundUp(int size) {
+        int n = Integer.highestOneBit(size);
+        return n == size ? n : n << 1;
+    }
+
+    /**
+     * @return the largest buffer which is pooled
+     */
+    public int maxPooledSize() {
+        return minSize << (freeLists.length - 1);
+    }
+
+    public long allocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    public long usedBytes() {
+        return usedBytes.get();
+    }
+
+    public long cachedBytes() {
+        return cachedBytes.get();
+    }
+}
@@ -0,0 +1,80 @@
+package com.mszf.nio;
+
+import com.mszf.handler.SocketHandler;
+import com.mszf.util.MpscQueue;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The state of a connection, attached to its {@link SelectionKey}. Any thread hands outbound data over
+ * through the lock-free {@link #outbound} queue, everything else is only touched by the selecting
+ * thread of the {@link #owner}, so no lock is shared between the connections.
+ */
+public class ChannelContext {
+
+    final SocketChannel channel;
+
+    // The I/O loop the channel is registered with
+    final AbstractNioAllocator owner;
+
+    SelectionKey key;
+
+    // Decodes the frames read off the channel
+    final SocketHandler decoder;
+
+    // Buffers handed over by any thread and not taken by the selecting thread yet
+    final MpscQueue<Outbound> outbound = new MpscQueue<>();
+
+    // Buffers taken from the outbound queue and being written, only touched by the selecting thread
+    final Deque<Outbound> writing = new ArrayDeque<>();
+
+    // Set by the first hand-over after a flush, so the later ones don't ask the selecting thread again
+    final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    // When the pending flush was asked for, in nanoseconds
+    volatile long flushRequested;
+
+    // Bytes handed over and not written yet
+    final AtomicLong pendingBytes = new AtomicLong();
+
+    // Cleared when the pending bytes go above the high water mark, set again below the low one
+    final AtomicBoolean writable = new AtomicBoolean(true);
+
+    // The last read or write, only touched by the selecting thread
+    long lastActive = System.currentTimeMillis();
+
+    ChannelContext(SocketChannel channel, AbstractNioAllocator owner) {
+        this(channel, owner, new SocketHandler());
+    }
+
+    ChannelContext(SocketChannel channel, AbstractNioAllocator owner, SocketHandler decoder) {
+        this.channel = channel;
+        this.owner = owner;
+        this.decoder = decoder;
+    }
+
+    public SocketChannel channel() {
+        return channel;
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * @return false while the bytes queued for the connection are above the high water mark, a producer
+     * should hold off until it's writable again
+     */
+    public boolean isWritable() {
+        return writable.get();
+    }
+
+    public long pendingBytes() {
+        return pendingBytes.get();
+    }
+}
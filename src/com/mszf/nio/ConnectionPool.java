@@ -0,0 +1,226 @@
+package com.mszf.nio;
+
+import com.mszf.handler.ResponseHandler;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of the connections to one endpoint. Idle connections are handed out last-in first-out so
+ * the warmest socket is reused, requests find no free connection when the pool is full wait in line for the
+ * next released one. Multiplexed requests share the connections instead, see {@link #leastBusy()}.
+ * All of the methods should be called holding the pool's lock. A connection is the {@link ChannelContext}
+ * attached to its key as well, so the selecting thread finds it without the lock.
+ */
+class ConnectionPool {
+
+    private final int maxSize;
+
+    private final long keepAliveMillis;
+
+    // Connected sockets without a request in flight
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+
+    // Every open connection of the pool
+    private final Map<SocketChannel, PooledConnection> connections = new HashMap<>();
+
+    // Requests waiting for a connection to be released
+    private final Queue<PendingRequest> waiting = new LinkedList<>();
+
+    ConnectionPool(int maxSize, long keepAliveMillis) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    /**
+     * Take an idle connection which is still healthy, the broken or expired ones met on the way are closed.
+     *
+     * @return null if there's no idle connection
+     */
+    PooledConnection acquire() {
+        long now = System.currentTimeMillis();
+        PooledConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            if (connection.isHealthy(now, keepAliveMillis)) {
+                return connection;
+            }
+            remove(connection.channel);
+            closeQuietly(connection.channel);
+        }
+        return null;
+    }
+
+    /**
+     * Take the open connection with the fewest requests in flight, for pipelining.
+     *
+     * @return null if there's no open connection
+     */
+    PooledConnection leastBusy() {
+        PooledConnection least = null;
+        for (PooledConnection connection : connections.values()) {
+            if (connection.channel.isOpen() && (least == null || connection.inFlight.size() < least.inFlight.size())) {
+                least = connection;
+            }
+        }
+        return least;
+    }
+
+    long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    boolean canGrow() {
+        return connections.size() < maxSize;
+    }
+
+    PooledConnection add(PooledConnection connection) {
+        connections.put(connection.channel, connection);
+        return connection;
+    }
+
+    PooledConnection get(SocketChannel socket) {
+        return connections.get(socket);
+    }
+
+    /**
+     * Put the connection back to the idle ones, or hand it to the first waiting request.
+     *
+     * @param connection
+     * @return the request to send on the connection next, null if it went idle
+     */
+    PendingRequest release(PooledConnection connection) {
+        PendingRequest next = waiting.poll();
+        if (next == null) {
+            connection.lastUsed = System.currentTimeMillis();
+            idle.offerFirst(connection);
+        }
+        return next;
+    }
+
+    PooledConnection remove(SocketChannel socket) {
+        PooledConnection connection = connections.remove(socket);
+        if (connection != null) {
+            idle.remove(connection);
+        }
+        return connection;
+    }
+
+    void await(PendingRequest request) {
+        waiting.add(request);
+    }
+
+    PendingRequest nextWaiting() {
+        return waiting.poll();
+    }
+
+    /**
+     * Drop a request nobody waits for any more.
+     *
+     * @param requestId
+     */
+    void forget(long requestId) {
+        for (PooledConnection connection : connections.values()) {
+            if (connection.inFlight.remove(requestId) != null) {
+                return;
+            }
+        }
+        waiting.removeIf(request -> request.requestId == requestId);
+    }
+
+    Collection<PooledConnection> connections() {
+        return connections.values();
+    }
+
+    void closeAll() {
+        connections.keySet().forEach(ConnectionPool::closeQuietly);
+        connections.clear();
+        idle.clear();
+    }
+
+    int size() {
+        return connections.size();
+    }
+
+    int idleSize() {
+        return idle.size();
+    }
+
+    private static void closeQuietly(SocketChannel socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.out.println("ERROR:" + e.getMessage());
+        }
+    }
+
+    static class PooledConnection extends ChannelContext {
+
+        volatile long lastUsed = System.currentTimeMillis();
+
+        // Maps the id of a request sent on this connection to the handler of its response, the multiplexed
+        // responses take theirs without the pool's lock
+        final Map<Long, ResponseHandler> inFlight = new ConcurrentHashMap<>();
+
+        // Bytes handed over and held back until the connection's flushed
+        final AtomicLong unflushedBytes = new AtomicLong();
+
+        // Set while a linger timer is armed for the held bytes
+        final AtomicBoolean lingering = new AtomicBoolean();
+
+        PooledConnection(SocketChannel socket, AbstractNioAllocator owner) {
+            super(socket, owner);
+        }
+
+        boolean isBusy() {
+            return !inFlight.isEmpty();
+        }
+
+        /**
+         * Take the handler of the request answered by a frame without request id, there's at most one in flight.
+         *
+         * @return null if no request is in flight
+         */
+        ResponseHandler pollInFlight() {
+            Iterator<ResponseHandler> it = inFlight.values().iterator();
+            if (!it.hasNext()) {
+                return null;
+            }
+            ResponseHandler handler = it.next();
+            it.remove();
+            return handler;
+        }
+
+        boolean isHealthy(long now, long keepAliveMillis) {
+            return channel.isOpen() && channel.isConnected() && (now - lastUsed) < keepAliveMillis;
+        }
+    }
+
+    static class PendingRequest {
+
+        final long requestId;
+
+        final byte[] content;
+
+        final ResponseHandler handler;
+
+        PendingRequest(long requestId, byte[] content, ResponseHandler handler) {
+            this.requestId = requestId;
+            this.content = content;
+            this.handler = handler;
+        }
+    }
+}
@@ -1,50 +1,734 @@
 package com.mszf.nio;
 
+import com.mszf.cache.ResponseCache;
+import com.mszf.handler.BatchRequestHandler;
+import com.mszf.handler.CachingRequestHandler;
 import com.mszf.handler.RequestHandler;
+import com.mszf.handler.SocketHandler;
+import com.mszf.handler.StreamingRequestHandler;
+import com.mszf.metrics.NioMetrics;
+import com.mszf.util.Frame;
 
-import java.nio.channels.SocketChannel;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
-import static com.mszf.util.ByteUtils.removerLongHeader;
+import static com.mszf.util.Constant.BATCH_LINGER_MILLIS;
+import static com.mszf.util.Constant.BATCH_MAX_SIZE;
+import static com.mszf.util.Constant.EVENT_WORKER_QUEUE_SIZE;
+import static com.mszf.util.Constant.EVENT_WORKER_SHED_QUEUE_DELAY_MILLIS;
+import static com.mszf.util.Constant.EVENT_WORKER_THREADS;
+import static com.mszf.util.Constant.OVERLOADED;
+import static com.mszf.util.Constant.REQUEST_SPILL_THRESHOLD;
+import static com.mszf.util.Constant.TIMEOUT;
 
+/**
+ * Runs the handler for the requests read by the reactors. How it's run is the strategy of the worker,
+ * every strategy keeps the same counters so they can be compared on a deployment.
+ */
 public final class EventWorker {
 
+    // Run the handler on the reactor thread which read the request, for cheap non-blocking handlers
+    public static final int STRATEGY_INLINE = 1;
+    // Submit to a ForkJoinPool sized to the cores
+    public static final int STRATEGY_FORK_JOIN = 2;
+    // Submit to a fixed pool of platform threads with a bounded queue, the reactor thread runs the task when it's full
+    public static final int STRATEGY_BOUNDED_POOL = 3;
+    // Start a virtual thread per request, for handlers blocking on downstream I/O. Needs Java 21
+    public static final int STRATEGY_VIRTUAL_THREADS = 4;
+
+    private static final byte[] OVERLOADED_RESPONSE = OVERLOADED.getBytes();
+    private static final byte[] TIMEOUT_RESPONSE = TIMEOUT.getBytes();
+
     private final RequestHandler handler;
 
-    private final ForkJoinPool forkJoinPool = new ForkJoinPool();
+    private final int strategy;
+
+    // null for the inline strategy
+    private final ExecutorService executor;
+
+    // The same counters for every strategy
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder callerRuns = new LongAdder();
+    private final LongAdder queueNanos = new LongAdder();
+    private final LongAdder serviceNanos = new LongAdder();
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    // A new request is shed while the oldest request queued has waited longer than it, 0 never to shed
+    private volatile long shedQueueDelayNanos = TimeUnit.MILLISECONDS.toNanos(EVENT_WORKER_SHED_QUEUE_DELAY_MILLIS);
+
+    // The requests queued while shedding in the order they came in, the ones started are dropped from the head
+    private final ConcurrentLinkedQueue<ServerEventTask> waiting = new ConcurrentLinkedQueue<>();
+
+    // The batches of a batch handler, see setBatching
+    private volatile int maxBatchSize = BATCH_MAX_SIZE;
+    private volatile long batchLingerNanos = TimeUnit.MILLISECONDS.toNanos(BATCH_LINGER_MILLIS);
+
+    // The key of a request to coalesce it with the identical ones in flight, null not to coalesce
+    private volatile Function<byte[], ?> coalescingKey;
+
+    // The requests being processed for the ones coalesced, by their keys
+    private final ConcurrentHashMap<Object, Flight> flights = new ConcurrentHashMap<>();
 
     public EventWorker(RequestHandler handler) {
+        this(handler, STRATEGY_FORK_JOIN);
+    }
+
+    public EventWorker(RequestHandler handler, int strategy) {
+        this(handler, strategy, EVENT_WORKER_THREADS, EVENT_WORKER_QUEUE_SIZE);
+    }
+
+    /**
+     * @param handler
+     * @param strategy {@link #STRATEGY_INLINE}, {@link #STRATEGY_FORK_JOIN}, {@link #STRATEGY_BOUNDED_POOL}
+     *                 or {@link #STRATEGY_VIRTUAL_THREADS}
+     * @param threads the threads of the bounded pool
+     * @param queueSize the tasks waiting for a thread of the bounded pool
+     */
+    public EventWorker(RequestHandler handler, int strategy, int threads, int queueSize) {
         this.handler = handler;
+        this.strategy = strategy;
+
+        switch (strategy) {
+            case STRATEGY_INLINE:
+                this.executor = null;
+                break;
+            case STRATEGY_FORK_JOIN:
+                this.executor = new ForkJoinPool();
+                break;
+            case STRATEGY_BOUNDED_POOL:
+                this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(queueSize), new WorkerThreadFactory(), new CallerRuns());
+                break;
+            case STRATEGY_VIRTUAL_THREADS:
+                this.executor = newVirtualThreadPerTaskExecutor();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown strategy: " + strategy);
+        }
+    }
+
+    public void processData(NioServer server, ChannelContext context, Frame frame) {
+        processData(server, context, frame, null);
+    }
+
+    /**
+     * @param server
+     * @param context
+     * @param frame
+     * @param batch the batch of the reactor calling, a request for a batch handler is added to it
+     */
+    void processData(NioServer server, ChannelContext context, Frame frame, RequestBatch batch) {
+        submitted.increment();
+
+        ServerEventTask task = new ServerEventTask(server, context, frame);
+        Function<byte[], ?> coalescingKey = this.coalescingKey;
+        if (coalescingKey != null && frame.body != null && !frame.compressed && coalesce(task, coalescingKey.apply(frame.body))) {
+            return;
+        }
+        if (shedQueueDelayNanos > 0) {
+            task.queued = true;
+            waiting.offer(task);
+        }
+        if (batch != null && frame.body != null) {
+            if (batch.add(task) >= maxBatchSize) {
+                flushBatch(batch);
+            }
+            return;
+        }
+        execute(task);
+    }
+
+    /**
+     * Turn the request away on the reactor thread which read it, before it's counted in flight: it's answered with
+     * {@link com.mszf.util.Constant#TIMEOUT} when its sender has given up on it, and it's shed with {@link com.mszf.util.Constant#OVERLOADED} at once while
+     * the oldest request queued has waited longer than the shedding delay.
+     *
+     * @param server
+     * @param context
+     * @param frame
+     * @return true if it's turned away
+     */
+    boolean reject(NioServer server, ChannelContext context, Frame frame) {
+        if (frame.stream != null) {
+            // the body is the handler's already
+            return false;
+        }
+        if (expire(server, context, frame)) {
+            return true;
+        }
+
+        long shedQueueDelayNanos = this.shedQueueDelayNanos;
+        if (shedQueueDelayNanos == 0) {
+            return false;
+        }
+        ServerEventTask oldest = oldestWaiting();
+        if (oldest == null || System.nanoTime() - oldest.submitTime <= shedQueueDelayNanos) {
+            return false;
+        }
+        shed.increment();
+        send(server, context, frame, OVERLOADED_RESPONSE);
+        return true;
+    }
+
+    // The request waiting the longest for a thread, null if none is waiting
+    private ServerEventTask oldestWaiting() {
+        ServerEventTask head;
+        while ((head = waiting.peek()) != null && !head.queued) {
+            waiting.remove(head);
+        }
+        return head;
+    }
+
+    // Answer the request its sender has given up on with TIMEOUT instead of processing it
+    private boolean expire(NioServer server, ChannelContext context, Frame frame) {
+        if (frame.deadline == 0 || !frame.isExpired(System.nanoTime())) {
+            return false;
+        }
+        expired.increment();
+        send(server, context, frame, TIMEOUT_RESPONSE);
+        return true;
+    }
+
+    private static void send(NioServer server, ChannelContext context, Frame frame, byte[] response) {
+        if (frame.multiplexed) {
+            server.send(context, frame.requestId, response);
+        } else {
+            server.send(context, response);
+        }
+    }
+
+    /**
+     * Shed the new requests while the ones queued wait too long, the load the server can't keep up with is
+     * turned away at once rather than answered after its senders gave up. The wait is the age of the oldest
+     * request not started yet, so a pool stuck on slow requests sheds too.
+     *
+     * @param queueDelayMillis 0 never to shed
+     */
+    public void setShedding(long queueDelayMillis) {
+        if (queueDelayMillis < 0) {
+            throw new IllegalArgumentException("Bad queue delay: " + queueDelayMillis);
+        }
+        this.shedQueueDelayNanos = TimeUnit.MILLISECONDS.toNanos(queueDelayMillis);
+        if (queueDelayMillis == 0) {
+            waiting.clear();
+        }
+    }
+
+    /**
+     * @return a batch for a reactor to fill, null unless the handler is a batch handler
+     */
+    RequestBatch newBatch() {
+        return handler instanceof BatchRequestHandler ? new RequestBatch() : null;
+    }
+
+    /**
+     * @param batch
+     * @return the nanoseconds until the batch is due, 0 if it's due now, -1 if it's empty
+     */
+    long batchDelay(RequestBatch batch) {
+        if (batch.isEmpty()) {
+            return -1;
+        }
+        return Math.max(0, batch.firstNanos() + batchLingerNanos - System.nanoTime());
+    }
+
+    /**
+     * Hand the batch over as one task.
+     *
+     * @param batch
+     */
+    void flushBatch(RequestBatch batch) {
+        if (!batch.isEmpty()) {
+            batches.increment();
+            execute(new BatchTask(batch.drain()));
+        }
+    }
+
+    /**
+     * Set how the requests are batched for a batch handler. A reactor hands its batch over when it's full,
+     * or once the linger time has passed since its first request. With no linger, it's handed over at the
+     * end of the pass of the loop which read the requests.
+     *
+     * @param maxBatchSize the largest batch
+     * @param lingerMillis how long the first request of a batch waits for the others
+     */
+    public void setBatching(int maxBatchSize, long lingerMillis) {
+        if (maxBatchSize < 1 || lingerMillis < 0) {
+            throw new IllegalArgumentException("Bad batching: " + maxBatchSize + ", " + lingerMillis);
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.batchLingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+    }
+
+    // Take the flight of the key, or join it as a follower when there's one
+    private boolean coalesce(ServerEventTask task, Object key) {
+        if (key == null) {
+            return false;
+        }
+
+        Flight flight = new Flight(key);
+        for (;;) {
+            Flight leading = flights.putIfAbsent(key, flight);
+            if (leading == null) {
+                task.flight = flight;
+                return false;
+            }
+            if (leading.join(task)) {
+                coalesced.increment();
+                return true;
+            }
+            // it's landed in between, it's gone from the map by now
+        }
+    }
+
+    private void execute(Runnable task) {
+        if (executor == null) {
+            task.run();
+        } else {
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * Coalesce the requests with identical payloads, see {@link #setCoalescingKey(Function)}.
+     *
+     * @param coalescing
+     */
+    public void setCoalescing(boolean coalescing) {
+        setCoalescingKey(coalescing ? ByteBuffer::wrap : null);
+    }
+
+    /**
+     * Coalesce the requests arriving while one with the same key is processed: they don't run the handler,
+     * they get the response of the one running. For handlers whose response depends on nothing but the key.
+     * A request answered with a file region isn't shared, the ones coalesced with it run on their own then.
+     *
+     * @param coalescingKey the key of the body of a request, called by the reactor thread so it should be
+     *                      cheap. It returns null for a request not to coalesce. Null not to coalesce at all
+     */
+    public void setCoalescingKey(Function<byte[], ?> coalescingKey) {
+        this.coalescingKey = coalescingKey;
+    }
+
+    /**
+     * Answer the request from the cache of a caching handler, on the reactor thread which read it.
+     *
+     * @param server
+     * @param context
+     * @param frame
+     * @return true if it's answered, false if it's to be processed
+     */
+    boolean processCached(NioServer server, ChannelContext context, Frame frame) {
+        if (!(handler instanceof CachingRequestHandler) || frame.body == null || frame.compressed) {
+            return false;
+        }
+
+        byte[] response = ((CachingRequestHandler) handler).getCache().get(frame.body);
+        if (response == null) {
+            return false;
+        }
+        send(server, context, frame, response);
+        return true;
+    }
+
+    /**
+     * @return the cache of a caching handler, or null
+     */
+    ResponseCache responseCache() {
+        return handler instanceof CachingRequestHandler ? ((CachingRequestHandler) handler).getCache() : null;
+    }
+
+    /**
+     * @return the decoder of a new connection, it streams the bodies to a streaming handler
+     */
+    SocketHandler newDecoder() {
+        StreamingRequestHandler streaming = handler instanceof StreamingRequestHandler ? (StreamingRequestHandler) handler : null;
+        return new SocketHandler(REQUEST_SPILL_THRESHOLD, streaming);
+    }
+
+    void writabilityChanged(ChannelContext context, boolean writable) {
+        handler.writabilityChanged(context, writable);
+    }
+
+    /**
+     * Stop taking tasks, the ones submitted still run.
+     */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @return the tasks waiting for a thread
+     */
+    public long queuedCount() {
+        if (executor instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) executor).getQueue().size();
+        } else if (executor instanceof ForkJoinPool) {
+            return ((ForkJoinPool) executor).getQueuedSubmissionCount();
+        }
+        return 0;
     }
 
-    public void processData(NioServer server, SocketChannel socket, byte[] data) {
+    public int getStrategy() {
+        return strategy;
+    }
+
+    public long submittedCount() {
+        return submitted.sum();
+    }
+
+    public long completedCount() {
+        return completed.sum();
+    }
+
+    public long failedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * @return the tasks run by the reactor thread as the bounded pool was full
+     */
+    public long callerRunsCount() {
+        return callerRuns.sum();
+    }
+
+    /**
+     * @return the batches handed to a batch handler
+     */
+    public long batchCount() {
+        return batches.sum();
+    }
+
+    /**
+     * @return the requests answered with {@link com.mszf.util.Constant#OVERLOADED} at once
+     */
+    public long shedCount() {
+        return shed.sum();
+    }
+
+    /**
+     * @return the requests answered with TIMEOUT unprocessed, as their senders had given up on them
+     */
+    public long expiredCount() {
+        return expired.sum();
+    }
+
+    /**
+     * @return the requests answered with the response of an identical one in flight
+     */
+    public long coalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return the tasks running now
+     */
+    public int activeCount() {
+        return active.get();
+    }
+
+    /**
+     * @return the total time the tasks waited between the submission and the start
+     */
+    public long queueTimeNanos() {
+        return queueNanos.sum();
+    }
+
+    /**
+     * @return the total time the tasks ran, with the handler and the response sent
+     */
+    public long serviceTimeNanos() {
+        return serviceNanos.sum();
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() is only there from Java 21 on
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) java.util.concurrent.Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later", e);
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "nio-worker-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    // Run on the reactor thread when the pool is full, which slows the reading down as well
+    private class CallerRuns implements RejectedExecutionHandler {
 
-        forkJoinPool.execute(new ServerEventTask(server, socket, data));
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("EventWorker is shut down");
+            }
+            callerRuns.increment();
+            r.run();
+        }
     }
 
-    class ServerEventTask extends RecursiveTask<Boolean>{
+    class ServerEventTask implements Runnable {
 
         public NioServer server;
-        public SocketChannel socket;
-        public byte[] data;
+        public ChannelContext context;
+        public Frame frame;
+
+        // Set for a request leading the ones coalesced with it
+        Flight flight;
+
+        // Held in the requests waiting until it starts
+        volatile boolean queued;
+
+        private final long submitTime = System.nanoTime();
 
-        public ServerEventTask(NioServer server, SocketChannel socket, byte[] data) {
+        public ServerEventTask(NioServer server, ChannelContext context, Frame frame) {
             this.server = server;
-            this.socket = socket;
-            this.data = data;
+            this.context = context;
+            this.frame = frame;
         }
 
         @Override
-        protected Boolean compute() {
+        public void run() {
+            NioMetrics metrics = server.getMetrics();
+            long start = System.nanoTime();
+            started(start, metrics);
+            if (expire()) {
+                return;
+            }
+            active.incrementAndGet();
+            byte[] response = null;
+            boolean ok = false;
             try {
-                System.out.println("Event worker, data:" + new String(removerLongHeader(data)));
-                server.send(socket, handler.process(data));
+                // A compressed request is inflated here, off the I/O loop
+                Frame frame = FrameCodec.inflate(this.frame, metrics);
+                FileRegion region = frame.stream != null ? null : handler.processFile(frame.buffer());
+                if (region != null) {
+                    metrics.handlerNanos.record(System.nanoTime() - start);
+                    if (frame.multiplexed) {
+                        server.sendFile(context, frame.requestId, region);
+                    } else {
+                        server.sendFile(context, region);
+                    }
+                    completed.increment();
+                    ok = true;
+                    return;
+                }
+
+                if (frame.stream != null) {
+                    response = frame.stream.complete();
+                } else if (handler instanceof CachingRequestHandler && frame.body != null && !this.frame.compressed) {
+                    // it's missed the cache on the reactor thread already
+                    response = ((CachingRequestHandler) handler).processMiss(frame.body);
+                } else {
+                    response = handler.process(frame.buffer());
+                }
+                metrics.handlerNanos.record(System.nanoTime() - start);
+
+                send(response);
+                completed.increment();
+                ok = true;
             } catch (Exception e) {
+                failed.increment();
                 e.printStackTrace();
+            } finally {
+                active.decrementAndGet();
+                serviceNanos.add(System.nanoTime() - start);
+                server.requestDone();
+                if (flight != null) {
+                    land(ok, response);
+                }
             }
+        }
 
+        private void send(byte[] response) {
+            // A multiplexed request is answered as soon as it's done, whatever the order it came in
+            EventWorker.send(server, context, frame, response);
+        }
+
+        // Count the wait from the submission, it's dropped from the requests waiting once it's the oldest
+        void started(long start, NioMetrics metrics) {
+            queueNanos.add(start - submitTime);
+            metrics.queueWaitNanos.record(start - submitTime);
+            queued = false;
+        }
+
+        /**
+         * Answer the request with TIMEOUT if its sender has given up on it while it waited.
+         *
+         * @return true if it's not to be processed
+         */
+        boolean expire() {
+            if (!EventWorker.this.expire(server, context, frame)) {
+                return false;
+            }
+            server.requestDone();
+            if (flight != null) {
+                // the ones coalesced with it run on their own
+                land(true, null);
+            }
             return true;
         }
+
+        /**
+         * Answer the request processed with others, or fail it.
+         *
+         * @param ok
+         * @param response
+         */
+        void finish(boolean ok, byte[] response) {
+            try {
+                if (ok) {
+                    send(response);
+                    completed.increment();
+                } else {
+                    failed.increment();
+                }
+            } catch (Exception e) {
+                ok = false;
+                failed.increment();
+                e.printStackTrace();
+            } finally {
+                server.requestDone();
+                if (flight != null) {
+                    land(ok, response);
+                }
+            }
+        }
+
+        // Answer the requests coalesced with this one, the later ones lead a flight of their own
+        private void land(boolean ok, byte[] response) {
+            flights.remove(flight.key, flight);
+            for (ServerEventTask follower : flight.land()) {
+                if (ok && response == null) {
+                    // answered with a region, which can't be shared, or expired
+                    execute(follower);
+                } else {
+                    // a failed one fails them all, they'd fail the same
+                    follower.finish(ok, response);
+                }
+            }
+        }
+    }
+
+    // Runs a batch handler on the requests of a batch
+    private class BatchTask implements Runnable {
+
+        private final List<ServerEventTask> tasks;
+
+        private final long submitTime = System.nanoTime();
+
+        BatchTask(List<ServerEventTask> tasks) {
+            this.tasks = tasks;
+        }
+
+        @Override
+        public void run() {
+            NioMetrics metrics = tasks.get(0).server.getMetrics();
+            long start = System.nanoTime();
+            for (ServerEventTask task : tasks) {
+                task.started(start, metrics);
+            }
+            metrics.batchSize.record(tasks.size());
+            active.incrementAndGet();
+
+            List<ServerEventTask> processed = new ArrayList<>(tasks.size());
+            List<byte[]> requests = new ArrayList<>(tasks.size());
+            List<byte[]> responses = null;
+            try {
+                for (ServerEventTask task : tasks) {
+                    if (task.expire()) {
+                        continue;
+                    }
+                    try {
+                        // A compressed request is inflated here, off the I/O loop
+                        requests.add(FrameCodec.inflate(task.frame, metrics).body);
+                        processed.add(task);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        task.finish(false, null);
+                    }
+                }
+
+                if (requests.isEmpty()) {
+                    // all expired or failed, there's nothing for the handler
+                    return;
+                }
+                responses = ((BatchRequestHandler) handler).processBatch(requests);
+                if (responses.size() != requests.size()) {
+                    throw new IllegalStateException("Batch of " + requests.size() + " answered with " + responses.size());
+                }
+            } catch (Exception e) {
+                responses = null;
+                e.printStackTrace();
+            } finally {
+                if (!requests.isEmpty()) {
+                    metrics.handlerNanos.record(System.nanoTime() - start);
+                }
+                for (int i = 0; i < processed.size(); i++) {
+                    byte[] response = responses != null ? responses.get(i) : null;
+                    processed.get(i).finish(response != null, response);
+                }
+                active.decrementAndGet();
+                serviceNanos.add(System.nanoTime() - start);
+            }
+        }
+    }
+
+    // The requests coalesced with the one leading, landed with it
+    private static final class Flight {
+
+        final Object key;
+
+        private final List<ServerEventTask> followers = new ArrayList<>();
+
+        private boolean landed;
+
+        Flight(Object key) {
+            this.key = key;
+        }
+
+        synchronized boolean join(ServerEventTask follower) {
+            if (landed) {
+                return false;
+            }
+            followers.add(follower);
+            return true;
+        }
+
+        synchronized List<ServerEventTask> land() {
+            landed = true;
+            return followers;
+        }
     }
-}
\ No newline at end of file
+}
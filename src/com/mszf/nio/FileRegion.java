@@ -0,0 +1,125 @@
+package com.mszf.nio;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A region of a file to answer a request with. It's written with {@link FileChannel#transferTo}, sendfile
+ * on Linux, so the bytes go from the page cache to the socket without being copied into user space.
+ */
+public class FileRegion implements Outbound {
+
+    private final FileChannel file;
+
+    private final long position;
+
+    private final long count;
+
+    // Close the file once the region is released
+    private final boolean closeOnRelease;
+
+    private long transferred = 0;
+
+    // The frame header written before the region
+    private PooledBuffer header;
+
+    /**
+     * @param file the file, it's left open
+     * @param position where the region starts
+     * @param count the length of the region
+     */
+    public FileRegion(FileChannel file, long position, long count) {
+        this(file, position, count, false);
+    }
+
+    private FileRegion(FileChannel file, long position, long count, boolean closeOnRelease) {
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException("Bad region: " + position + ", " + count);
+        }
+        this.file = file;
+        this.position = position;
+        this.count = count;
+        this.closeOnRelease = closeOnRelease;
+    }
+
+    /**
+     * Open the whole file as a region, the file is closed once the region is released.
+     *
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public static FileRegion open(Path path) throws IOException {
+        FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+        return new FileRegion(file, 0, file.size(), true);
+    }
+
+    public long count() {
+        return count;
+    }
+
+    void setHeader(PooledBuffer header) {
+        this.header = header;
+    }
+
+    /**
+     * @return the bytes of the header and the region not written yet
+     */
+    long remaining() {
+        return (header == null ? 0 : header.buffer().remaining()) + count - transferred;
+    }
+
+    boolean isDone() {
+        return remaining() == 0;
+    }
+
+    /**
+     * Write the header, then transfer the region on from where the last call stopped.
+     *
+     * @param target
+     * @param max the most bytes of the region transferred
+     * @return the bytes written
+     * @throws IOException
+     */
+    long transferTo(WritableByteChannel target, long max) throws IOException {
+        long written = 0;
+        if (header != null && header.buffer().hasRemaining()) {
+            written = target.write(header.buffer());
+            if (header.buffer().hasRemaining()) {
+                return written;
+            }
+        }
+
+        if (transferred == count) {
+            // an empty region is done once its header is
+            return written;
+        }
+
+        long n = file.transferTo(position + transferred, Math.min(count - transferred, max), target);
+        if (n == 0 && position + transferred >= file.size()) {
+            throw new IOException("File region beyond the end of the file: " + (position + count));
+        }
+        transferred += n;
+        return written + n;
+    }
+
+    @Override
+    public boolean release() {
+        if (header != null) {
+            header.release();
+            header = null;
+        }
+
+        if (closeOnRelease && file.isOpen()) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                System.out.println("ERROR:" + e.getMessage());
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,131 @@
+package com.mszf.nio;
+
+import com.mszf.metrics.NioMetrics;
+import com.mszf.util.Compression;
+import com.mszf.util.Frame;
+import com.mszf.util.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Frames the payloads sent by the server and the client, straight into pooled direct buffers, and
+ * inflates the compressed payloads received.
+ */
+final class FrameCodec {
+
+    // Room kept before a deflated payload for the header and the length of the content
+    private static final int COMPRESSED_RESERVE = Message.MAX_COMPACT_HEADER_LENGTH + 5;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Frame the payload, a compact frame is compressed when the payload is at least the threshold and
+     * deflating makes it smaller.
+     *
+     * @param pool
+     * @param compact false for the legacy 8-byte length header
+     * @param multiplexed
+     * @param requestId
+     * @param data
+     * @param compressionThreshold 0 to never compress
+     * @param metrics
+     * @return the frame, flipped for writing
+     */
+    static PooledBuffer encode(BufferPool pool, boolean compact, boolean multiplexed, long requestId, byte[] data,
+                               int compressionThreshold, NioMetrics metrics) {
+        return encode(pool, compact, multiplexed, requestId, 0, data, compressionThreshold, metrics);
+    }
+
+    /**
+     * Frame the payload, like {@link #encode(BufferPool, boolean, boolean, long, byte[], int, NioMetrics)}, with
+     * the time the sender waits for the response. A legacy frame can't carry it.
+     *
+     * @param pool
+     * @param compact
+     * @param multiplexed
+     * @param requestId
+     * @param timeoutMillis 0 for no deadline
+     * @param data
+     * @param compressionThreshold
+     * @param metrics
+     * @return the frame, flipped for writing
+     */
+    static PooledBuffer encode(BufferPool pool, boolean compact, boolean multiplexed, long requestId, int timeoutMillis,
+                               byte[] data, int compressionThreshold, NioMetrics metrics) {
+        if (!compact) {
+            PooledBuffer frame = pool.allocate(Message.frameLength(data.length, multiplexed));
+            if (multiplexed) {
+                Message.writeFrame(frame.buffer(), requestId, data);
+            } else {
+                Message.writeFrame(frame.buffer(), data);
+            }
+            frame.buffer().flip();
+            return frame;
+        }
+
+        int flags = (multiplexed ? Message.FLAG_REQUEST_ID : 0) | (timeoutMillis > 0 ? Message.FLAG_DEADLINE : 0);
+        if (compressionThreshold > 0 && data.length >= compressionThreshold) {
+            PooledBuffer frame = pool.allocate(COMPRESSED_RESERVE + data.length);
+            if (compress(frame.buffer(), flags, requestId, timeoutMillis, data, metrics)) {
+                return frame;
+            }
+            frame.release();
+        }
+
+        PooledBuffer frame = pool.allocate(Message.compactHeaderLength(flags, requestId, timeoutMillis, data.length) + data.length);
+        Message.writeCompactHeader(frame.buffer(), flags, requestId, timeoutMillis, data.length);
+        frame.buffer().put(data);
+        frame.buffer().flip();
+        return frame;
+    }
+
+    // Deflate after the room for the header, then write the header right before what's deflated
+    private static boolean compress(ByteBuffer buffer, int flags, long requestId, int timeoutMillis, byte[] data,
+                                    NioMetrics metrics) {
+        long start = System.nanoTime();
+        int lengthSize = Message.varintLength(data.length);
+        // not worth it unless the frame gets smaller than it'd be uncompressed
+        buffer.clear().position(COMPRESSED_RESERVE).limit(COMPRESSED_RESERVE + data.length - lengthSize);
+        int deflated = Compression.deflate(data, buffer);
+        metrics.compressNanos.record(System.nanoTime() - start);
+        if (deflated < 0) {
+            return false;
+        }
+        metrics.uncompressedBytes.add(data.length);
+        metrics.compressedBytes.add(deflated);
+
+        int bodyLength = lengthSize + deflated;
+        int frameStart = COMPRESSED_RESERVE - lengthSize
+                - Message.compactHeaderLength(flags, requestId, timeoutMillis, bodyLength);
+        buffer.position(frameStart);
+        Message.writeCompactHeader(buffer, flags | Message.FLAG_COMPRESSED, requestId, timeoutMillis, bodyLength);
+        Message.writeVarint(buffer, data.length);
+
+        buffer.limit(COMPRESSED_RESERVE + deflated).position(frameStart);
+        return true;
+    }
+
+    /**
+     * @param frame a frame read
+     * @param metrics
+     * @return the frame with its body inflated, or the frame itself if it's not compressed
+     * @throws IOException if the body is corrupt
+     */
+    static Frame inflate(Frame frame, NioMetrics metrics) throws IOException {
+        if (!frame.compressed) {
+            return frame;
+        }
+
+        long start = System.nanoTime();
+        byte[] content = Compression.inflate(frame.buffer());
+        metrics.decompressNanos.record(System.nanoTime() - start);
+        metrics.uncompressedBytes.add(content.length);
+        metrics.compressedBytes.add(frame.length);
+
+        Frame inflated = frame.multiplexed ? new Frame(frame.requestId, content) : new Frame(content);
+        inflated.deadline = frame.deadline;
+        return inflated;
+    }
+}
@@ -2,19 +2,40 @@ package com.mszf.nio;
 
 import com.mszf.handler.RequestContent;
 import com.mszf.handler.ResponseHandler;
+import com.mszf.metrics.NioMetrics;
+import com.mszf.nio.ConnectionPool.PendingRequest;
+import com.mszf.nio.ConnectionPool.PooledConnection;
+import com.mszf.util.Frame;
+import com.mszf.util.HashedWheelTimer;
+import com.mszf.util.HashedWheelTimer.Timeout;
 import com.mszf.util.Message;
+import com.mszf.util.MpscQueue;
 
 import java.io.IOException;
+import java.net.ConnectException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+import static com.mszf.util.Constant.CLIENT_COMPACT_FRAMES;
 import static com.mszf.util.Constant.CLIENT_CONNECTION_CHECK_SECONDS;
+import static com.mszf.util.Constant.CLIENT_CONNECT_TIMEOUT_MILLIS;
+import static com.mszf.util.Constant.CLIENT_FLUSH_BYTES;
+import static com.mszf.util.Constant.CLIENT_FLUSH_LINGER_MICROS;
+import static com.mszf.util.Constant.CLIENT_KEEP_ALIVE_SECONDS;
+import static com.mszf.util.Constant.CLIENT_POOL_MAX_SIZE;
+import static com.mszf.util.Constant.CLIENT_PROPAGATE_DEADLINES;
+import static com.mszf.util.Constant.COMPRESSION_THRESHOLD;
 import static com.mszf.util.Constant.CONNECT_REFUSED;
+import static com.mszf.util.Constant.TIMEOUT;
+import static com.mszf.util.Constant.TIMER_TICK_MILLIS;
+import static com.mszf.util.Constant.TIMER_WHEEL_SIZE;
 
 
 public class NioClient extends AbstractNioAllocator {
@@ -23,15 +44,68 @@ public class NioClient extends AbstractNioAllocator {
 
     private InetSocketAddress hostAddress;
 
-    private Selector selector;
+    // The kept-alive connections to the host, guarded by itself
+    private final ConnectionPool pool;
 
-    private long startTime;
+    // Pipeline the requests framed with their ids, instead of one request a connection at a time
+    private final boolean multiplexed;
 
-    private Map<SocketChannel, ResponseHandler> responseHandlers = Collections.synchronizedMap(new HashMap<>());
+    // Frame the requests with the compact header, the server answers in the format it's asked in
+    private volatile boolean compact = CLIENT_COMPACT_FRAMES;
+
+    // The compact frames carry the time left before a request times out
+    private volatile boolean propagateDeadlines = CLIENT_PROPAGATE_DEADLINES;
+
+    // The smallest request compressed, 0 to never compress
+    private volatile int compressionThreshold = COMPRESSION_THRESHOLD;
+
+    // The requests are held back per connection until these many bytes are, or the linger's passed. 0 to write at once
+    private volatile int flushBytes;
+    private volatile long flushLingerNanos;
+
+    // Flushes the connections whose linger has passed, started with the automatic flushing
+    private Flusher flusher;
+
+    private final AtomicLong nextRequestId = new AtomicLong();
+
+    // Request deadlines, idle connections and connect timeouts, driven by the selector thread
+    private final HashedWheelTimer timer = new HashedWheelTimer(TIMER_TICK_MILLIS, TIMER_WHEEL_SIZE);
 
     public NioClient(String host, int port) throws IOException {
+        this(host, port, CLIENT_POOL_MAX_SIZE, CLIENT_KEEP_ALIVE_SECONDS * 1000L);
+    }
+
+    /**
+     * @param host
+     * @param port
+     * @param maxConnections the most connections open to the host at once
+     * @param keepAliveMillis how long an idle connection is kept for reuse
+     * @throws IOException
+     */
+    public NioClient(String host, int port, int maxConnections, long keepAliveMillis) throws IOException {
+        this(host, port, maxConnections, keepAliveMillis, false);
+    }
+
+    /**
+     * @param host
+     * @param port
+     * @param maxConnections the most connections open to the host at once
+     * @param keepAliveMillis how long an idle connection is kept for reuse
+     * @param multiplexed true to pipeline many requests on each connection, the responses are matched by
+     *                    the request ids and may come back in any order
+     * @throws IOException
+     */
+    public NioClient(String host, int port, int maxConnections, long keepAliveMillis, boolean multiplexed) throws IOException {
         this.hostAddress = new InetSocketAddress(host, port);
-        this.selector = SelectorProvider.provider().openSelector();
+        this.pool = new ConnectionPool(maxConnections, keepAliveMillis);
+        this.multiplexed = multiplexed;
+        setAutoFlush(CLIENT_FLUSH_BYTES, CLIENT_FLUSH_LINGER_MICROS);
+
+        this.metrics.setOpenConnections(() -> {
+            synchronized (this.pool) {
+                return this.pool.size();
+            }
+        });
     }
 
     /**
@@ -42,7 +116,7 @@ public class NioClient extends AbstractNioAllocator {
      * @throws IOException
      */
     public void send(Message message, ResponseHandler handler) throws IOException {
-        send(message.getBody(), handler);
+        send(message.getContent(), handler);
     }
 
     /**
@@ -54,30 +128,172 @@ public class NioClient extends AbstractNioAllocator {
      * @throws IOException
      */
     public void send(Message message, ResponseHandler handler, long millis) throws IOException {
-        send(message.getBody(), handler, millis);
+        send(message.getContent(), handler, millis);
+    }
+
+    /**
+     * Send message without waiting. The future is completed by the selector thread, so the stages
+     * depending on it should be cheap or run asynchronously. Cancelling the future forgets the request.
+     *
+     * @param message
+     * @return the future of the response
+     * @throws IOException
+     */
+    public CompletableFuture<byte[]> sendAsync(Message message) throws IOException {
+        return sendAsync(message, 0);
     }
 
+    /**
+     * Send message without waiting.
+     *
+     * @param message
+     * @param millis timeout, the future is completed with a {@link TimeoutException} after it. 0 for no timeout
+     * @return the future of the response
+     * @throws IOException
+     */
+    public CompletableFuture<byte[]> sendAsync(Message message, long millis) throws IOException {
+        ResponseHandler handler = new ResponseHandler(millis);
+        send(message.getContent(), handler);
+        return handler.future();
+    }
 
     /**
+     * Send the messages without waiting, they're held back and flushed together at the end, so the ones
+     * going on one connection are written at once.
      *
-     * @param data
+     * @param messages
+     * @param millis timeout of each, 0 for no timeout
+     * @return the futures of the responses, in the order of the messages
+     * @throws IOException
+     */
+    public List<CompletableFuture<byte[]>> sendAllAsync(List<Message> messages, long millis) throws IOException {
+        List<CompletableFuture<byte[]>> futures = new ArrayList<>(messages.size());
+        try {
+            for (Message message : messages) {
+                ResponseHandler handler = new ResponseHandler(millis);
+                send(message.getContent(), handler, false);
+                futures.add(handler.future());
+            }
+        } finally {
+            flush();
+        }
+        return futures;
+    }
+
+    /**
+     * Write the requests held back on every connection now.
+     */
+    public void flush() {
+        List<PooledConnection> connections;
+        synchronized (this.pool) {
+            connections = new ArrayList<>(this.pool.connections());
+        }
+        for (PooledConnection connection : connections) {
+            if (connection.unflushedBytes.get() > 0) {
+                flush(connection);
+            }
+        }
+    }
+
+    private void flush(PooledConnection connection) {
+        connection.unflushedBytes.set(0);
+        connection.lingering.set(false);
+        flush((ChannelContext) connection);
+    }
+
+
+    /**
+     * Send on an idle pooled connection, or open a new one while the pool isn't full. Otherwise the
+     * request waits for the next connection released. A multiplexed request goes to the connection
+     * with the fewest requests in flight instead, once the pool is full.
+     *
+     * @param content
+     * @param handler
+     * @throws IOException
+     */
+    private void send(byte[] content, ResponseHandler handler) throws IOException {
+        send(content, handler, true);
+    }
+
+    /**
+     * @param content
      * @param handler
+     * @param flush false to hold the request back until {@link #flush()}
      * @throws IOException
      */
-    private void send(byte[] data, ResponseHandler handler) throws IOException {
-        SocketChannel socket = this.initiateConnection();
-        this.responseHandlers.put(socket, handler);
+    private void send(byte[] content, ResponseHandler handler, boolean flush) throws IOException {
+        long requestId = this.nextRequestId.getAndIncrement();
 
-        synchronized (this.pendingData) {
-            List<ByteBuffer> queue = this.pendingData.get(socket);
-            if (queue == null) {
-                queue = new ArrayList<>();
-                this.pendingData.put(socket, queue);
+        Timeout expiry = null;
+        if (handler.getDeadline() > 0) {
+            expiry = this.timer.newTimeout(() -> handler.handleError(new TimeoutException(TIMEOUT)),
+                    handler.getDeadline() - System.currentTimeMillis());
+        }
+
+        // A request cancelled or timed out is no longer waited for
+        Timeout timeout = expiry;
+        handler.future().whenComplete((response, cause) -> {
+            if (timeout != null) {
+                timeout.cancel();
+            }
+            if (cause != null) {
+                this.forget(requestId);
             }
-            queue.add(ByteBuffer.wrap(data));
+        });
+
+        PooledConnection connection;
+        synchronized (this.pool) {
+            connection = this.multiplexed ? this.pool.leastBusy() : this.pool.acquire();
+            if (connection == null || (connection.isBusy() && this.pool.canGrow())) {
+                if (!this.pool.canGrow()) {
+                    this.pool.await(new PendingRequest(requestId, content, handler));
+                    return;
+                }
+                connection = this.openConnection();
+            }
+            connection.inFlight.put(requestId, handler);
+        }
+
+        this.dispatch(connection, requestId, content, handler.getDeadline(), flush);
+    }
+
+    private void forget(long requestId) {
+        synchronized (this.pool) {
+            this.pool.forget(requestId);
         }
+    }
 
-        this.selector.wakeup();
+    private void dispatch(PooledConnection connection, PendingRequest request) {
+        dispatch(connection, request.requestId, request.content, request.handler.getDeadline(), true);
+    }
+
+    private void dispatch(PooledConnection connection, long requestId, byte[] content, long deadline, boolean flush) {
+        // The time left, at least a millisecond for a request late already so the server skips it
+        int timeout = 0;
+        if (deadline > 0 && this.propagateDeadlines) {
+            timeout = (int) Math.max(1, Math.min(Integer.MAX_VALUE, deadline - System.currentTimeMillis()));
+        }
+
+        // Frame straight into a direct buffer
+        PooledBuffer data = FrameCodec.encode(this.bufferPool, this.compact, this.multiplexed, requestId, timeout,
+                content, this.compressionThreshold, this.metrics);
+
+        // A new connection starts writing once it's established
+        int flushBytes = this.flushBytes;
+        if (flush && flushBytes == 0) {
+            queueData(connection, data);
+            return;
+        }
+
+        // Held back until the threshold, the linger or an explicit flush
+        int bytes = data.buffer().remaining();
+        queueData(connection, data, false);
+        long unflushed = connection.unflushedBytes.addAndGet(bytes);
+        if (flushBytes > 0 && unflushed >= flushBytes) {
+            flush(connection);
+        } else if (flush && connection.lingering.compareAndSet(false, true)) {
+            this.flusher.linger(connection, System.nanoTime() + this.flushLingerNanos);
+        }
     }
 
     /**
@@ -89,42 +305,29 @@ public class NioClient extends AbstractNioAllocator {
      * @throws IOException
      */
     private void send(byte[] data, ResponseHandler handler, long millis) throws IOException {
-        send(data, handler);
         millis = millis > 0 ? millis : CLIENT_CONNECTION_CHECK_SECONDS * 1000;
+        // The request is timed out and forgotten when the caller stops waiting, and the server is told so
+        if (handler.getDeadline() == 0) {
+            handler.setDeadline(System.currentTimeMillis() + millis);
+        }
+        send(data, handler);
         handler.waitAndGet(millis);
     }
 
     public void run() {
-
-        // set the checking info for connection
-        startTime = System.currentTimeMillis();
-
         while (isRunning) {
             try {
                 // Process any pending changes
-                synchronized (this.pendingChanges) {
-                    Iterator<RequestContent> changes = this.pendingChanges.iterator();
-                    while (changes.hasNext()) {
-                        RequestContent change = changes.next();
-                        switch (change.type) {
-                            case RequestContent.TYPE_CHANGE_OPS:
-                                SelectionKey key = change.socket.keyFor(this.selector);
-                                key.interestOps(change.ops);
-                                break;
-                            case RequestContent.TYPE_REGISTER:
-                                change.socket.register(this.selector, change.ops);
-                                break;
-                        }
-                    }
-                    this.pendingChanges.clear();
-                }
+                processChanges();
 
-                // Wait for an event one of the registered channels
-                int keyNums = this.selector.select(500);
-                if (keyNums == 0) {
-                    checkConnection();
-                    continue;
-                }
+                // Wait for an event one of the registered channels, no longer than the next tick of the timer
+                int keyNums = select(this.timer.nextDelay(System.currentTimeMillis(), 500));
+
+                // Fire the timeouts due, busy or not
+                long turnStart = System.nanoTime();
+                this.timer.expire(System.currentTimeMillis());
+                this.metrics.keysPerSelect.record(keyNums);
+                if (keyNums == 0) continue;
 
                 // Iterate over the set of keys for which events are available
                 Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
@@ -145,6 +348,7 @@ public class NioClient extends AbstractNioAllocator {
                         this.write(key);
                     }
                 }
+                this.metrics.selectLoopNanos.record(System.nanoTime() - turnStart);
             } catch (Exception e) {
                 System.out.println("ERROR:" + e.getMessage());
             }
@@ -152,19 +356,43 @@ public class NioClient extends AbstractNioAllocator {
     }
 
     private void read(SelectionKey key) throws IOException {
-        SocketChannel socketChannel = (SocketChannel) key.channel();
-        ResponseHandler handler = this.responseHandlers.get(socketChannel);
+        PooledConnection connection = (PooledConnection) key.attachment();
+
+        if (!readData(key)) return;
+
+        Frame frame;
+        while ((frame = connection.decoder.nextFrame()) != null) {
+            ResponseHandler handler;
+            PendingRequest next = null;
+            if (frame.multiplexed) {
+                // Nothing but the connection's own map is touched
+                handler = connection.inFlight.remove(frame.requestId);
+                connection.lastUsed = System.currentTimeMillis();
+            } else {
+                synchronized (this.pool) {
+                    if (this.pool.get(connection.channel) != connection) return;
+
+                    // The only request in flight is the one answered, keep the connection for the next request
+                    handler = connection.pollInFlight();
+                    next = this.pool.release(connection);
+                    if (next != null) {
+                        connection.inFlight.put(next.requestId, next.handler);
+                    }
+                }
+            }
 
-        byte[] data = readData(key);
-        if (data == null) return;
+            if (handler != null) {
+                try {
+                    handler.handleMessage(FrameCodec.inflate(frame, this.metrics).body);
+                } catch (IOException e) {
+                    handler.handleError(e);
+                }
+            }
 
-        if (handler != null) {
-            handler.handleMessage(data);
+            if (next != null) {
+                this.dispatch(connection, next);
+            }
         }
-
-        socketChannel.close();
-        socketChannel.keyFor(this.selector).cancel();
-        this.responseHandlers.remove(socketChannel);
     }
 
     private void write(SelectionKey key) throws IOException {
@@ -177,26 +405,49 @@ public class NioClient extends AbstractNioAllocator {
             socketChannel.finishConnect();
         } catch (Exception e) {
             System.out.println("ERROR:" + e.getMessage());
-            this.pendingData.remove(socketChannel);
-
-            if (this.responseHandlers.containsKey(socketChannel)) {
-                this.responseHandlers.get(socketChannel).handleMessage(CONNECT_REFUSED.getBytes());
+            try {
+                closeChannel(key);
+            } catch (IOException ex) {
+                System.out.println("ERROR:" + ex.getMessage());
             }
-            key.cancel();
             return;
         }
 
-        // Register an interest in writing on this channel
-        key.interestOps(SelectionKey.OP_WRITE);
+        // Register an interest in reading, and in writing the requests queued while connecting
+        PooledConnection connection = (PooledConnection) key.attachment();
+        key.interestOps(connection.flushScheduled.get() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
     }
 
-    private SocketChannel initiateConnection() throws IOException {
+    /**
+     * Open a connection into the pool, its idle check is scheduled with it. Called holding the pool's lock.
+     *
+     * @return
+     * @throws IOException
+     */
+    private PooledConnection openConnection() throws IOException {
         // Create a non-blocking socket channel
         SocketChannel socketChannel = SocketChannel.open();
         socketChannel.configureBlocking(false);
 
-        // Kick off connection establishment
-        socketChannel.connect(hostAddress);
+        PooledConnection connection = this.pool.add(new PooledConnection(socketChannel, this));
+        this.initiateConnection(connection);
+        this.timer.newTimeout(() -> checkIdle(connection), this.pool.getKeepAliveMillis());
+        return connection;
+    }
+
+    private void initiateConnection(PooledConnection connection) throws IOException {
+        SocketChannel socketChannel = connection.channel;
+
+        // Give up the connection not established in time
+        this.timer.newTimeout(() -> {
+            if (socketChannel.isOpen() && !socketChannel.isConnected()) {
+                System.out.println("NioClient: handle the broken connection.");
+                closeConnection(connection);
+            }
+        }, CLIENT_CONNECT_TIMEOUT_MILLIS);
+
+        // Kick off connection establishment, a local connection may be established at once
+        int ops = socketChannel.connect(hostAddress) ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT;
 
         /**
          * Queue a channel registration since the caller is not the
@@ -204,39 +455,102 @@ public class NioClient extends AbstractNioAllocator {
          * an interest in connection events. These are raised when a channel
          * is ready to complete connection establishment.
          **/
-        synchronized (this.pendingChanges) {
-            this.pendingChanges.add(new RequestContent(socketChannel, RequestContent.TYPE_REGISTER, SelectionKey.OP_CONNECT));
+        this.pendingChanges.offer(new RequestContent(socketChannel, RequestContent.TYPE_REGISTER, ops, connection));
+    }
+
+    /**
+     * Close the connection unused for the keep-alive time, otherwise check it again when it could be.
+     *
+     * @param connection
+     */
+    private void checkIdle(PooledConnection connection) {
+        long keepAlive = this.pool.getKeepAliveMillis();
+        synchronized (this.pool) {
+            if (this.pool.get(connection.channel) != connection) {
+                // it's gone already
+                return;
+            }
+
+            long idle = System.currentTimeMillis() - connection.lastUsed;
+            if (connection.isBusy() || idle < keepAlive) {
+                long delay = connection.isBusy() ? keepAlive : keepAlive - idle;
+                this.timer.newTimeout(() -> checkIdle(connection), delay);
+                return;
+            }
+            this.pool.remove(connection.channel);
         }
 
-        return socketChannel;
+        closeConnection(connection);
     }
 
-    public void checkConnection() {
-        // Check the connect per 1 second.
-        if ((System.currentTimeMillis() - startTime) < CLIENT_CONNECTION_CHECK_SECONDS * 1000) {
-            return;
-        } else {
-            startTime = System.currentTimeMillis();
+    private void closeConnection(PooledConnection connection) {
+        try {
+            if (connection.key != null) {
+                closeChannel(connection.key);
+            } else {
+                // not registered yet, the registration is skipped
+                connection.channel.close();
+                failConnection(connection);
+            }
+        } catch (IOException e) {
+            System.out.println("ERROR:" + e.getMessage());
         }
+    }
 
-        // checkout the closed socket and handle message.
-        Map<SocketChannel, ResponseHandler> map = new HashMap<>(this.responseHandlers);
-        map.forEach(((socketChannel, responseHandler) -> {
-            if (responseHandler.isBlocked() && (!socketChannel.isConnected())) {
-                this.responseHandlers.remove(socketChannel).handleMessage(CONNECT_REFUSED.getBytes());
-                System.out.println("NioClient: handle the broken connection.");
+    @Override
+    protected void closeChannel(SelectionKey key) throws IOException {
+        super.closeChannel(key);
+
+        failConnection((PooledConnection) key.attachment());
+    }
+
+    /**
+     * The broken connection leaves the pool, its requests are answered with {@link com.mszf.util.Constant#CONNECT_REFUSED}
+     * and a new connection is opened for the request waiting in line.
+     *
+     * @param broken
+     * @throws IOException
+     */
+    private void failConnection(PooledConnection broken) throws IOException {
+        Collection<ResponseHandler> handlers = Collections.emptyList();
+        PooledConnection connection = null;
+        PendingRequest next;
+        synchronized (this.pool) {
+            if (this.pool.remove(broken.channel) != null) {
+                handlers = new ArrayList<>(broken.inFlight.values());
+                broken.inFlight.clear();
             }
-        }));
 
+            next = this.pool.nextWaiting();
+            if (next != null) {
+                connection = this.openConnection();
+                connection.inFlight.put(next.requestId, next.handler);
+            }
+        }
+
+        handlers.forEach(handler -> handler.handleError(new ConnectException(CONNECT_REFUSED)));
+
+        if (next != null) {
+            this.dispatch(connection, next);
+        }
     }
 
     @Override
     public void close() throws IOException {
         isRunning = false;
+        synchronized (this) {
+            if (this.flusher != null) {
+                this.flusher.stop();
+            }
+        }
 
         if (selector != null && selector.isOpen()) {
             selector.close();
         }
+
+        synchronized (this.pool) {
+            this.pool.closeAll();
+        }
     }
 
     @Override
@@ -244,9 +558,131 @@ public class NioClient extends AbstractNioAllocator {
         return isRunning;
     }
 
+    /**
+     * Hold the requests back on each connection and write them together, when the bytes held reach the
+     * threshold or the linger has passed since the first of them, whichever comes first. It saves a wake
+     * up of the selector and a write for each of a burst of small requests, at the cost of the linger.
+     *
+     * @param flushBytes the bytes held back a connection is flushed at, 0 to write every request at once
+     * @param lingerMicros how long a request is held back at most
+     */
+    public synchronized void setAutoFlush(int flushBytes, long lingerMicros) {
+        if (flushBytes < 0 || lingerMicros < 0) {
+            throw new IllegalArgumentException("Bad auto flush: " + flushBytes + ", " + lingerMicros);
+        }
+        this.flushLingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+        if (flushBytes > 0 && this.flusher == null) {
+            this.flusher = new Flusher();
+            Thread thread = new Thread(this.flusher, "nio-client-flusher");
+            thread.setDaemon(true);
+            this.flusher.thread = thread;
+            thread.start();
+        }
+        this.flushBytes = flushBytes;
+    }
+
+    /**
+     * @param compact false to frame the requests with the legacy 8-byte length header, for a server
+     *                that doesn't know the compact format yet
+     */
+    public void setCompactFrames(boolean compact) {
+        this.compact = compact;
+    }
+
+    /**
+     * @param propagateDeadlines false not to tell the server how long each request is waited for, for a server
+     *                           that doesn't know the deadline of the compact format yet
+     */
+    public void setPropagateDeadlines(boolean propagateDeadlines) {
+        this.propagateDeadlines = propagateDeadlines;
+    }
+
+    /**
+     * Compress the requests from the given size on, they're only compressed in compact frames.
+     *
+     * @param threshold the smallest request compressed, 0 to never compress
+     */
+    public void setCompressionThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Bad compression threshold: " + threshold);
+        }
+        this.compressionThreshold = threshold;
+    }
+
+    /**
+     * @return the instrumentation of the client, it's not published unless it's registered
+     */
+    public NioMetrics getMetrics() {
+        return this.metrics;
+    }
+
     public String getHost() {
         return this.hostAddress.getHostString();
     }
 
 
-}
\ No newline at end of file
+
+    // Flushes the connections held back once their linger has passed
+    private class Flusher implements Runnable {
+
+        // The connections lingering, the linger is the same for all so they're due in order
+        private final MpscQueue<Lingering> lingering = new MpscQueue<>();
+
+        private volatile Thread thread;
+
+        // Set while the flusher waits for a connection to linger, so it's only unparked then
+        private volatile boolean idle;
+
+        private volatile boolean running = true;
+
+        void linger(PooledConnection connection, long deadline) {
+            lingering.offer(new Lingering(connection, deadline));
+            if (idle) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        void stop() {
+            running = false;
+            LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                Lingering next = lingering.peek();
+                if (next == null) {
+                    idle = true;
+                    if (lingering.isEmpty()) {
+                        LockSupport.park(this);
+                    }
+                    idle = false;
+                    continue;
+                }
+
+                long wait = next.deadline - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(this, wait);
+                    continue;
+                }
+                lingering.poll();
+                // flushed by the threshold since, or lingering again
+                if (next.connection.lingering.get()) {
+                    flush(next.connection);
+                }
+            }
+        }
+    }
+
+    private static final class Lingering {
+
+        final PooledConnection connection;
+
+        final long deadline;
+
+        Lingering(PooledConnection connection, long deadline) {
+            this.connection = connection;
+            this.deadline = deadline;
+        }
+    }
+}
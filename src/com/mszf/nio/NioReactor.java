@@ -0,0 +1,317 @@
+package com.mszf.nio;
+
+import com.mszf.handler.RequestContent;
+import com.mszf.util.Frame;
+import com.mszf.util.HashedWheelTimer;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.mszf.util.Constant.SERVER_IDLE_TIMEOUT_SECONDS;
+import static com.mszf.util.Constant.TIMER_TICK_MILLIS;
+import static com.mszf.util.Constant.TIMER_WHEEL_SIZE;
+
+/**
+ * One I/O loop of the server. The acceptor hands accepted channels over by {@link #register(SocketChannel)},
+ * from then on every read and write of the channel happens on this reactor's selector thread, with its own
+ * lock-free change queue. The state of a channel is its {@link ChannelContext}, attached to its key.
+ */
+public class NioReactor extends AbstractNioAllocator {
+
+    private volatile boolean isRunning = true;
+
+    private final NioServer server;
+
+    // Number of channels owned by this reactor, used by the least-loaded balancing
+    private final AtomicInteger connections = new AtomicInteger();
+
+    // Idle connections, driven by the selector thread
+    private final HashedWheelTimer timer = new HashedWheelTimer(TIMER_TICK_MILLIS, TIMER_WHEEL_SIZE);
+
+    private final long idleTimeout = SERVER_IDLE_TIMEOUT_SECONDS * 1000L;
+
+    // Reading is suspended while the server has too many requests in flight, only touched by the selecting thread
+    private boolean readSuspended = false;
+
+    // The time of the current turn of the loop
+    private long now = System.currentTimeMillis();
+
+    // The requests read for a batch handler and not handed over yet, null for any other handler
+    private final RequestBatch batch;
+
+    public NioReactor(NioServer server) throws IOException {
+        super(server.getMetrics());
+        this.server = server;
+        this.batch = server.getWorker().newBatch();
+    }
+
+    /**
+     * Hand an accepted channel over to this reactor, it's registered by the selecting thread.
+     *
+     * @param socket
+     */
+    public void register(SocketChannel socket) {
+        connections.incrementAndGet();
+
+        ChannelContext context = new ChannelContext(socket, this, server.getWorker().newDecoder());
+        this.pendingChanges.offer(new RequestContent(socket, RequestContent.TYPE_REGISTER, SelectionKey.OP_READ, context));
+
+        wakeup();
+    }
+
+    /**
+     * Accept on the listener from now on, the channels accepted are this reactor's. Called before it runs.
+     *
+     * @param listener
+     * @throws IOException
+     */
+    void listen(ServerSocketChannel listener) throws IOException {
+        listener.register(this.selector, SelectionKey.OP_ACCEPT);
+    }
+
+    @Override
+    protected void registered(ChannelContext context) {
+        if (context.key == null) {
+            // closed before it's registered
+            connections.decrementAndGet();
+            return;
+        }
+
+        updateReadInterest(context.key);
+        if (idleTimeout > 0) {
+            timer.newTimeout(new IdleCheck(context), idleTimeout);
+        }
+    }
+
+    @Override
+    protected void writabilityChanged(ChannelContext context, boolean writable) {
+        // The read interest follows on the next write event of the channel
+        this.server.getWorker().writabilityChanged(context, writable);
+    }
+
+    public void run() {
+        while (isRunning) {
+            try {
+                // Process any pending changes
+                processChanges();
+
+                // Stop or resume reading as the requests in flight go above or below the limits
+                if (this.server.isReadSuspended() != this.readSuspended) {
+                    this.readSuspended = !this.readSuspended;
+                    for (SelectionKey key : this.selector.keys()) {
+                        if (!(key.attachment() instanceof ChannelContext)) {
+                            // a listener
+                            continue;
+                        }
+                        updateReadInterest(key);
+                        if (key.isValid()) {
+                            dispatch((ChannelContext) key.attachment());
+                        }
+                    }
+                }
+
+                // Wait for an event one of the registered channels, no longer than the next tick of the timer
+                int keyNums = select(selectTimeout());
+
+                // Fire the timeouts due, busy or not
+                long turnStart = System.nanoTime();
+                this.now = System.currentTimeMillis();
+                this.timer.expire(this.now);
+                this.metrics.keysPerSelect.record(keyNums);
+                if (keyNums == 0) {
+                    // a lingering batch may be due all the same
+                    flushBatch();
+                    continue;
+                }
+
+                // Iterate over the set of keys for which events are available
+                Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        this.accept(key);
+                        continue;
+                    }
+
+                    ((ChannelContext) key.attachment()).lastActive = this.now;
+
+                    // Check what event is available and deal with it
+                    if (key.isReadable()) {
+                        this.read(key);
+                    } else if (key.isWritable()) {
+                        this.write(key);
+                    }
+                }
+                flushBatch();
+                this.metrics.selectLoopNanos.record(System.nanoTime() - turnStart);
+            } catch (Exception e) {
+                System.out.println("[NIO] REACTOR LOOP ERROR" + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    protected boolean hasPendingWork() {
+        // reading is to be resumed or suspended
+        return super.hasPendingWork() || this.server.isReadSuspended() != this.readSuspended;
+    }
+
+    // No longer than the next tick of the timer, or the batch lingering
+    private long selectTimeout() {
+        long timeout = this.timer.nextDelay(System.currentTimeMillis(), 500);
+        long delay = this.batch != null ? this.server.getWorker().batchDelay(this.batch) : -1;
+        if (delay >= 0) {
+            timeout = Math.max(1, Math.min(timeout, TimeUnit.NANOSECONDS.toMillis(delay)));
+        }
+        return timeout;
+    }
+
+    // Hand the batch over if it's due, called at the end of each pass
+    private void flushBatch() {
+        if (this.batch != null && this.server.getWorker().batchDelay(this.batch) == 0) {
+            this.server.getWorker().flushBatch(this.batch);
+        }
+    }
+
+    // Accept on the listener of the reactor, the channel is registered on the next turn of the loop
+    private void accept(SelectionKey key) throws IOException {
+        SocketChannel socketChannel = ((ServerSocketChannel) key.channel()).accept();
+        if (socketChannel == null) {
+            return;
+        }
+        this.server.configure(socketChannel);
+        this.register(socketChannel);
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        if (readData(key)) {
+            dispatch((ChannelContext) key.attachment());
+        }
+    }
+
+    /**
+     * Hand the frames read off the channel to our worker thread, unless the channel shouldn't be read. Then
+     * the rest of them wait in the decoder, and are handed over when the channel is read again.
+     *
+     * @param context
+     */
+    private void dispatch(ChannelContext context) {
+        Frame frame;
+        while (isReadable(context)) {
+            if (this.server.isReadSuspended()) {
+                // Stop at once rather than at the next turn
+                this.readSuspended = true;
+                break;
+            }
+            if ((frame = context.decoder.nextFrame()) == null) {
+                return;
+            }
+            if (this.server.getWorker().processCached(this.server, context, frame)
+                    || this.server.getWorker().reject(this.server, context, frame)) {
+                continue;
+            }
+            this.server.requestStarted();
+            this.server.getWorker().processData(this.server, context, frame, this.batch);
+        }
+        updateReadInterest(context.key);
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        writeData(key);
+        if (key.isValid()) {
+            updateReadInterest(key);
+            dispatch((ChannelContext) key.attachment());
+        }
+    }
+
+    /**
+     * Read off the channel unless the server is over its requests in flight, or the channel
+     * isn't writable as its peer doesn't read the responses as fast as it sends the requests.
+     *
+     * @param key
+     */
+    private void updateReadInterest(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+
+        int ops = key.interestOps();
+        int next = isReadable((ChannelContext) key.attachment()) ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ;
+        if (next != ops) {
+            key.interestOps(next);
+        }
+    }
+
+    @Override
+    protected void closeChannel(SelectionKey key) throws IOException {
+        super.closeChannel(key);
+
+        connections.decrementAndGet();
+    }
+
+    private boolean isReadable(ChannelContext context) {
+        return !readSuspended && context.isWritable();
+    }
+
+    /**
+     * Closes the connection without reads or writes for the idle timeout, it's rescheduled to the time
+     * the connection could be idle for long enough otherwise, so it runs about once an idle timeout.
+     */
+    private class IdleCheck implements Runnable {
+
+        private final ChannelContext context;
+
+        IdleCheck(ChannelContext context) {
+            this.context = context;
+        }
+
+        @Override
+        public void run() {
+            SelectionKey key = context.key;
+            if (!key.isValid()) {
+                return;
+            }
+
+            long idle = now - context.lastActive;
+            if (idle < idleTimeout) {
+                timer.newTimeout(this, idleTimeout - idle);
+                return;
+            }
+
+            try {
+                closeChannel(key);
+            } catch (IOException e) {
+                System.out.println("[NIO] REACTOR IDLE CLOSE ERROR" + e.getMessage());
+            }
+        }
+    }
+
+    public int connectionCount() {
+        return connections.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        isRunning = false;
+
+        if (selector.isOpen()) {
+            selector.close();
+        }
+    }
+
+    @Override
+    public boolean isAlive() {
+        return isRunning;
+    }
+}
@@ -1,78 +1,228 @@
 package com.mszf.nio;
 
-import com.mszf.handler.RequestContent;
+import com.mszf.metrics.NioMetrics;
+import com.mszf.util.Message;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
+import java.net.StandardSocketOptions;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
-import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static com.mszf.util.Constant.COMPRESSION_THRESHOLD;
+import static com.mszf.util.Constant.SERVER_MAX_IN_FLIGHT_REQUESTS;
+import static com.mszf.util.Constant.SERVER_RESUME_IN_FLIGHT_REQUESTS;
 
-public class NioServer extends AbstractNioAllocator {
+
+/**
+ * The acceptor of the server. Accepted channels are handed over to one of the {@link NioReactor}s,
+ * which do all of the reading and writing on their own selector threads. With sharded listeners there's
+ * no acceptor, every reactor accepts on a listener of its own, see {@link ServerConfig#setListeners(int)}.
+ */
+public class NioServer implements Runnable {
+
+    // Hand the accepted channels to the reactors in turn
+    public static final int BALANCE_ROUND_ROBIN = 1;
+    // Hand the accepted channels to the reactor owning the fewest connections
+    public static final int BALANCE_LEAST_LOADED = 2;
 
     private volatile boolean isRunning = true;
 
     // The host:port combination to listen on
     private InetSocketAddress hostAddress;
 
+    // The socket options of the listeners and the accepted channels
+    private final ServerConfig config;
+
     // The channel on which we'll accept connections
     private ServerSocketChannel serverSocketChannel;
 
     // The selector we'll be monitoring
     private Selector selector;
 
+    // The listeners sharing the port, one for each reactor, null for the single acceptor
+    private ServerSocketChannel[] listeners;
+
     private EventWorker worker;
 
+    // The I/O loops, each one runs on its own thread
+    private final NioReactor[] reactors;
+
+    private final int balance;
+
+    private int nextReactor = 0;
+
+    // The instrumentation of the reactors and the worker, published over JMX
+    private final NioMetrics metrics = new NioMetrics();
+
+    // Requests read and not answered yet
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private volatile int maxInFlight = SERVER_MAX_IN_FLIGHT_REQUESTS;
+
+    private volatile int resumeInFlight = SERVER_RESUME_IN_FLIGHT_REQUESTS;
+
+    // The reactors stop reading while it's set
+    private volatile boolean readSuspended = false;
+
+    // The smallest response compressed on a compact connection, 0 to never compress
+    private volatile int compressionThreshold = COMPRESSION_THRESHOLD;
+
     public NioServer(String host, int port, EventWorker worker) throws IOException {
-        this.hostAddress = new InetSocketAddress(host, port);
-        this.selector = this.initSelector();
-        this.worker = worker;
+        this(new ServerConfig().setHost(host).setPort(port), worker);
+    }
+
+    /**
+     * @param host
+     * @param port
+     * @param worker
+     * @param ioThreads number of reactors doing the reading and writing
+     * @param balance {@link #BALANCE_ROUND_ROBIN} or {@link #BALANCE_LEAST_LOADED}
+     * @throws IOException
+     */
+    public NioServer(String host, int port, EventWorker worker, int ioThreads, int balance) throws IOException {
+        this(new ServerConfig().setHost(host).setPort(port).setIoThreads(ioThreads).setBalance(balance), worker);
     }
 
-    public void send(SocketChannel socket, byte[] data) {
-        synchronized (this.pendingChanges) {
-            // Indicate we want the interest ops set changed
-            this.pendingChanges.add(new RequestContent(socket, RequestContent.TYPE_CHANGE_OPS, SelectionKey.OP_WRITE));
+    /**
+     * @param config
+     * @param worker
+     * @throws IOException
+     * @throws UnsupportedOperationException if the listeners are sharded and SO_REUSEPORT isn't supported here
+     */
+    public NioServer(ServerConfig config, EventWorker worker) throws IOException {
+        this.config = config;
+        this.hostAddress = new InetSocketAddress(config.getHost(), config.getPort());
+        this.worker = worker;
+        this.balance = config.getBalance();
 
-            // And queue the data we want written
-            synchronized (this.pendingData) {
-                List<ByteBuffer> queue = this.pendingData.get(socket);
-                if (queue == null) {
-                    queue = new ArrayList();
-                    this.pendingData.put(socket, queue);
-                }
-                queue.add(ByteBuffer.wrap(data));
+        int ioThreads = config.getListeners() > 1 ? config.getListeners() : config.getIoThreads();
+        this.reactors = new NioReactor[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            this.reactors[i] = new NioReactor(this);
+            this.reactors[i].setWaitStrategy(config.getWaitStrategy());
+        }
+
+        if (config.getListeners() > 1) {
+            this.listeners = new ServerSocketChannel[config.getListeners()];
+            for (int i = 0; i < this.listeners.length; i++) {
+                this.listeners[i] = this.openListener(true);
+                this.reactors[i].listen(this.listeners[i]);
+            }
+        } else {
+            this.selector = this.initSelector();
+        }
+
+        this.metrics.setOpenConnections(() -> {
+            long connections = 0;
+            for (NioReactor reactor : this.reactors) {
+                connections += reactor.connectionCount();
             }
+            return connections;
+        });
+        this.metrics.setInFlightRequests(this.inFlight::get);
+        this.metrics.setWorkerQueueDepth(worker::queuedCount);
+        this.metrics.setShedRequests(worker::shedCount);
+        this.metrics.setExpiredRequests(worker::expiredCount);
+        if (worker.responseCache() != null) {
+            this.metrics.addComponent("responseCache", worker.responseCache());
         }
+        this.metrics.register("Server", this.hostAddress.getHostString() + ":" + this.hostAddress.getPort());
+    }
 
-        // Finally, wake up our selecting thread so it can make the required changes
-        this.selector.wakeup();
+    /**
+     * Send the response of a request, it's framed the way the connection frames its requests.
+     *
+     * @param context the connection the request is read off
+     * @param data
+     */
+    public void send(ChannelContext context, byte[] data) {
+        // Frame straight into a direct buffer
+        PooledBuffer frame = FrameCodec.encode(BufferPool.getDefault(), context.decoder.isCompact(), false, 0, data,
+                this.compressionThreshold, this.metrics);
+        context.owner.queueData(context, frame);
+    }
+
+    /**
+     * Send the response of a multiplexed request, it's framed with the id of the request so the
+     * responses on one connection can go in any order.
+     *
+     * @param context the connection the request is read off
+     * @param requestId
+     * @param data
+     */
+    public void send(ChannelContext context, long requestId, byte[] data) {
+        PooledBuffer frame = FrameCodec.encode(BufferPool.getDefault(), context.decoder.isCompact(), true, requestId, data,
+                this.compressionThreshold, this.metrics);
+        context.owner.queueData(context, frame);
+    }
+
+    /**
+     * Send a region of a file as the response of a request, it's framed with the length header and
+     * transferred to the socket without being copied into user space.
+     *
+     * @param context the connection the request is read off
+     * @param region
+     */
+    public void sendFile(ChannelContext context, FileRegion region) {
+        PooledBuffer header;
+        if (context.decoder.isCompact()) {
+            header = BufferPool.getDefault().allocate(Message.MAX_COMPACT_HEADER_LENGTH);
+            Message.writeCompactHeader(header.buffer(), 0, 0, region.count());
+        } else {
+            header = BufferPool.getDefault().allocate(Message.HEADER_LENGTH);
+            Message.writeHeader(header.buffer(), region.count());
+        }
+        header.buffer().flip();
+        region.setHeader(header);
+        context.owner.queueFile(context, region);
+    }
+
+    /**
+     * Send a region of a file as the response of a multiplexed request, see {@link #sendFile(ChannelContext, FileRegion)}.
+     *
+     * @param context the connection the request is read off
+     * @param requestId
+     * @param region
+     */
+    public void sendFile(ChannelContext context, long requestId, FileRegion region) {
+        PooledBuffer header;
+        if (context.decoder.isCompact()) {
+            header = BufferPool.getDefault().allocate(Message.MAX_COMPACT_HEADER_LENGTH);
+            Message.writeCompactHeader(header.buffer(), Message.FLAG_REQUEST_ID, requestId, region.count());
+        } else {
+            header = BufferPool.getDefault().allocate(Message.MULTIPLEX_HEADER_LENGTH);
+            Message.writeHeader(header.buffer(), requestId, region.count());
+        }
+        header.buffer().flip();
+        region.setHeader(header);
+        context.owner.queueFile(context, region);
     }
 
     public void run() {
+        if (listeners != null) {
+            // Every reactor accepts on its own, the current thread runs the first one
+            for (int i = 1; i < reactors.length; i++) {
+                Thread thread = new Thread(reactors[i], "nio-reactor-" + i);
+                thread.start();
+            }
+            reactors[0].run();
+            return;
+        }
+
+        // Start the I/O loops, the current thread keeps accepting
+        for (int i = 0; i < reactors.length; i++) {
+            Thread thread = new Thread(reactors[i], "nio-reactor-" + i);
+            thread.start();
+        }
+
         while (isRunning) {
             try {
-                // Process any pending changes
-                synchronized (this.pendingChanges) {
-                    Iterator<RequestContent> changes = this.pendingChanges.iterator();
-                    while (changes.hasNext()) {
-                        RequestContent change = changes.next();
-                        switch (change.type) {
-                            case RequestContent.TYPE_CHANGE_OPS:
-                                SelectionKey key = change.socket.keyFor(this.selector);
-                                key.interestOps(change.ops);
-                        }
-                    }
-                    this.pendingChanges.clear();
-                }
-
                 // Wait for an event one of the registered channels
                 int keyNums = this.selector.select(500);
                 if (keyNums == 0) continue;
@@ -87,20 +237,12 @@ public class NioServer extends AbstractNioAllocator {
                         continue;
                     }
 
-                    // Check what event is available and deal with it
                     if (key.isAcceptable()) {
                         this.accept(key);
-                    } else if (key.isReadable()) {
-                        this.read(key);
-                    } else if (key.isWritable()) {
-                        this.write(key);
                     }
                 }
             } catch (Exception e) {
                 System.out.println("[NIO] SERVER LOOP ERROR" + e.getMessage());
-                if (e instanceof NullPointerException) {
-                    return;
-                }
             }
         }
     }
@@ -111,39 +253,121 @@ public class NioServer extends AbstractNioAllocator {
 
         // Accept the connection and make it non-blocking
         SocketChannel socketChannel = serverSocketChannel.accept();
-        socketChannel.configureBlocking(false);
+        if (socketChannel == null) {
+            return;
+        }
+        this.configure(socketChannel);
 
-        socketChannel.register(this.selector, SelectionKey.OP_READ);
+        // Hand it over to one of the I/O loops
+        this.nextReactor().register(socketChannel);
     }
 
-    private void read(SelectionKey key) throws IOException {
-        SocketChannel socketChannel = (SocketChannel) key.channel();
+    private NioReactor nextReactor() {
+        if (balance == BALANCE_LEAST_LOADED) {
+            NioReactor least = reactors[0];
+            for (int i = 1; i < reactors.length; i++) {
+                if (reactors[i].connectionCount() < least.connectionCount()) {
+                    least = reactors[i];
+                }
+            }
+            return least;
+        }
 
-        byte[] data = readData(key);
-        if (data == null) {
-            return;
-        } else if (readingData.get(socketChannel).isReading()){
+        // only the acceptor thread moves the index
+        NioReactor reactor = reactors[nextReactor];
+        nextReactor = (nextReactor + 1) % reactors.length;
+        return reactor;
+    }
+
+    /**
+     * Set the limit of the requests in flight, the reactors stop reading above it.
+     *
+     * @param max the requests in flight the reading stops above
+     * @param resume the requests in flight the reading resumes at
+     */
+    public void setMaxInFlightRequests(int max, int resume) {
+        if (resume < 0 || max < resume) {
+            throw new IllegalArgumentException("Bad in-flight limits: " + max + ", " + resume);
+        }
+        this.maxInFlight = max;
+        this.resumeInFlight = resume;
+    }
+
+    /**
+     * Set the outbound water marks of the connections, see {@link ChannelContext#isWritable()}.
+     *
+     * @param low
+     * @param high
+     */
+    public void setWriteBufferWaterMark(int low, int high) {
+        for (NioReactor reactor : reactors) {
+            reactor.setWriteBufferWaterMark(low, high);
+        }
+    }
+
+    /**
+     * Compress the responses on the compact connections from the given size on. The connections framing
+     * with the legacy header get them uncompressed whatever the size.
+     *
+     * @param threshold the smallest response compressed, 0 to never compress
+     */
+    public void setCompressionThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Bad compression threshold: " + threshold);
+        }
+        this.compressionThreshold = threshold;
+    }
+
+    public int inFlightRequests() {
+        return inFlight.get();
+    }
+
+    void requestStarted() {
+        if (inFlight.incrementAndGet() > maxInFlight && !readSuspended) {
+            updateReadSuspended();
+        }
+    }
+
+    void requestDone() {
+        if (inFlight.decrementAndGet() <= resumeInFlight && readSuspended) {
+            updateReadSuspended();
+        }
+    }
+
+    // the rare transitions are decided under the lock, so a late suspend can't outlive the requests in flight
+    private synchronized void updateReadSuspended() {
+        boolean suspend = readSuspended ? inFlight.get() > resumeInFlight : inFlight.get() > maxInFlight;
+        if (suspend == readSuspended) {
             return;
         }
 
-        // Hand the data off to our worker thread
-        this.worker.processData(this, socketChannel, data);
+        readSuspended = suspend;
+        if (!suspend) {
+            // the reactors may sit in select with reading turned off
+            for (NioReactor reactor : reactors) {
+                reactor.wakeup();
+            }
+        }
+    }
+
+    boolean isReadSuspended() {
+        return readSuspended;
+    }
+
+    public NioMetrics getMetrics() {
+        return this.metrics;
     }
 
-    private void write(SelectionKey key) throws IOException {
-        writeData(key);
+    EventWorker getWorker() {
+        return this.worker;
     }
 
     private Selector initSelector() throws IOException {
         // Create a new selector
         Selector socketSelector = SelectorProvider.provider().openSelector();
 
-        // Create a new non-blocking server socket channel
-        this.serverSocketChannel = ServerSocketChannel.open();
-        serverSocketChannel.configureBlocking(false);
-
-        // Bind the server socket to the specified address and port
-        serverSocketChannel.socket().bind(hostAddress);
+        // Create a new non-blocking server socket channel, bound to the specified address and port
+        this.serverSocketChannel = this.openListener(false);
 
         // Register the server socket channel, indicating an interest in accepting new connections
         serverSocketChannel.register(socketSelector, SelectionKey.OP_ACCEPT);
@@ -151,7 +375,53 @@ public class NioServer extends AbstractNioAllocator {
         return socketSelector;
     }
 
-    @Override
+    private ServerSocketChannel openListener(boolean reusePort) throws IOException {
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        try {
+            listener.configureBlocking(false);
+            listener.setOption(StandardSocketOptions.SO_REUSEADDR, config.isReuseAddress());
+            if (reusePort) {
+                if (!listener.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    throw new UnsupportedOperationException("SO_REUSEPORT isn't supported here");
+                }
+                listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            // set before the bind, so the window scaling of the accepted channels follows it
+            if (config.getReceiveBufferSize() > 0) {
+                listener.setOption(StandardSocketOptions.SO_RCVBUF, config.getReceiveBufferSize());
+            }
+            listener.bind(hostAddress, config.getBacklog());
+        } catch (IOException | RuntimeException e) {
+            listener.close();
+            throw e;
+        }
+
+        // The next listeners share the port bound, when it's an ephemeral one
+        this.hostAddress = new InetSocketAddress(hostAddress.getAddress(),
+                ((InetSocketAddress) listener.getLocalAddress()).getPort());
+        return listener;
+    }
+
+    /**
+     * Make an accepted channel non-blocking and set its socket options.
+     *
+     * @param socket
+     * @throws IOException
+     */
+    void configure(SocketChannel socket) throws IOException {
+        try {
+            socket.configureBlocking(false);
+            socket.setOption(StandardSocketOptions.TCP_NODELAY, config.isTcpNoDelay());
+            socket.setOption(StandardSocketOptions.SO_KEEPALIVE, config.isKeepAlive());
+            if (config.getSendBufferSize() > 0) {
+                socket.setOption(StandardSocketOptions.SO_SNDBUF, config.getSendBufferSize());
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
     public void close() throws IOException {
         isRunning = false;
 
@@ -162,9 +432,21 @@ public class NioServer extends AbstractNioAllocator {
         if (null != serverSocketChannel && serverSocketChannel.isOpen()) {
             serverSocketChannel.close();
         }
+
+        if (null != listeners) {
+            for (ServerSocketChannel listener : listeners) {
+                listener.close();
+            }
+        }
+
+        for (NioReactor reactor : reactors) {
+            reactor.close();
+        }
+
+        worker.shutdown();
+        metrics.unregister();
     }
 
-    @Override
     public boolean isAlive() {
         return isRunning;
     }
@@ -172,4 +454,11 @@ public class NioServer extends AbstractNioAllocator {
     public String getHost() {
         return this.hostAddress.getHostString();
     }
-}
\ No newline at end of file
+
+    /**
+     * @return the port bound, the ephemeral one when configured with port 0
+     */
+    public int getPort() {
+        return this.hostAddress.getPort();
+    }
+}
@@ -0,0 +1,13 @@
+package com.mszf.nio;
+
+/**
+ * Data queued for a channel, a {@link PooledBuffer} or a {@link FileRegion}. It's released once it's
+ * written, or the channel is closed.
+ */
+interface Outbound {
+
+    /**
+     * @return true if this is the last reference
+     */
+    boolean release();
+}
@@ -0,0 +1,64 @@
+package com.mszf.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A buffer taken from a {@link BufferPool}. It's reference counted, the last {@link #release()} gives
+ * the memory back to the pool, so it must not be touched after that.
+ */
+public final class PooledBuffer implements Outbound {
+
+    private final BufferPool pool;
+
+    // The index of the size class, -1 for a buffer too large to be pooled
+    final int sizeClass;
+
+    private final ByteBuffer buffer;
+
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+
+    PooledBuffer(BufferPool pool, int sizeClass, ByteBuffer buffer) {
+        this.pool = pool;
+        this.sizeClass = sizeClass;
+        this.buffer = buffer;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    public int refCnt() {
+        return refCnt.get();
+    }
+
+    public PooledBuffer retain() {
+        if (refCnt.getAndIncrement() <= 0) {
+            refCnt.getAndDecrement();
+            throw new IllegalStateException("buffer is released already");
+        }
+        return this;
+    }
+
+    /**
+     * @return true if this is the last reference and the buffer went back to the pool
+     */
+    @Override
+    public boolean release() {
+        int cnt = refCnt.decrementAndGet();
+        if (cnt > 0) {
+            return false;
+        }
+        if (cnt < 0) {
+            refCnt.incrementAndGet();
+            throw new IllegalStateException("buffer is released already");
+        }
+
+        pool.recycle(this);
+        return true;
+    }
+}
@@ -0,0 +1,38 @@
+package com.mszf.nio;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The requests a reactor has read for a {@link com.mszf.handler.BatchRequestHandler} and not handed to the
+ * worker yet, only touched by the selecting thread of the reactor.
+ */
+final class RequestBatch {
+
+    private List<EventWorker.ServerEventTask> tasks = new ArrayList<>();
+
+    // When the first request of the batch was added
+    private long firstNanos;
+
+    int add(EventWorker.ServerEventTask task) {
+        if (tasks.isEmpty()) {
+            firstNanos = System.nanoTime();
+        }
+        tasks.add(task);
+        return tasks.size();
+    }
+
+    boolean isEmpty() {
+        return tasks.isEmpty();
+    }
+
+    long firstNanos() {
+        return firstNanos;
+    }
+
+    List<EventWorker.ServerEventTask> drain() {
+        List<EventWorker.ServerEventTask> drained = tasks;
+        tasks = new ArrayList<>(drained.size());
+        return drained;
+    }
+}
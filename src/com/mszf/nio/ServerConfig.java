@@ -0,0 +1,187 @@
+package com.mszf.nio;
+
+import static com.mszf.util.Constant.HOST;
+import static com.mszf.util.Constant.PORT;
+import static com.mszf.util.Constant.SELECT_WAIT_STRATEGY;
+import static com.mszf.util.Constant.SERVER_BACKLOG;
+import static com.mszf.util.Constant.SERVER_IO_THREADS;
+import static com.mszf.util.Constant.SERVER_KEEP_ALIVE;
+import static com.mszf.util.Constant.SERVER_LISTENERS;
+import static com.mszf.util.Constant.SERVER_RECEIVE_BUFFER_SIZE;
+import static com.mszf.util.Constant.SERVER_REUSE_ADDRESS;
+import static com.mszf.util.Constant.SERVER_SEND_BUFFER_SIZE;
+import static com.mszf.util.Constant.SERVER_TCP_NO_DELAY;
+
+/**
+ * The configuration of a {@link NioServer}: where it listens, its I/O loops and the socket options of the
+ * listening and the accepted channels. The setters return the configuration so they can be chained.
+ */
+public class ServerConfig {
+
+    private String host = HOST;
+
+    private int port = PORT;
+
+    private int ioThreads = SERVER_IO_THREADS;
+
+    private int balance = NioServer.BALANCE_ROUND_ROBIN;
+
+    // The listening sockets sharing the port with SO_REUSEPORT, 1 for a single acceptor
+    private int listeners = SERVER_LISTENERS;
+
+    private int backlog = SERVER_BACKLOG;
+
+    private boolean reuseAddress = SERVER_REUSE_ADDRESS;
+
+    private boolean tcpNoDelay = SERVER_TCP_NO_DELAY;
+
+    private boolean keepAlive = SERVER_KEEP_ALIVE;
+
+    // 0 for the default of the system
+    private int receiveBufferSize = SERVER_RECEIVE_BUFFER_SIZE;
+
+    private int sendBufferSize = SERVER_SEND_BUFFER_SIZE;
+
+    private int waitStrategy = SELECT_WAIT_STRATEGY;
+
+    public String getHost() {
+        return host;
+    }
+
+    public ServerConfig setHost(String host) {
+        this.host = host;
+        return this;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public ServerConfig setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * @param ioThreads number of reactors doing the reading and writing
+     */
+    public ServerConfig setIoThreads(int ioThreads) {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("ioThreads must be positive: " + ioThreads);
+        }
+        this.ioThreads = ioThreads;
+        return this;
+    }
+
+    public int getBalance() {
+        return balance;
+    }
+
+    /**
+     * @param balance {@link NioServer#BALANCE_ROUND_ROBIN} or {@link NioServer#BALANCE_LEAST_LOADED}, it's
+     *                only for the single acceptor
+     */
+    public ServerConfig setBalance(int balance) {
+        this.balance = balance;
+        return this;
+    }
+
+    public int getListeners() {
+        return listeners;
+    }
+
+    /**
+     * Listen on the port with as many sockets bound with SO_REUSEPORT, each of them accepted by a reactor
+     * of its own, so the kernel spreads the connections over the reactors instead of a single acceptor.
+     * There are as many reactors as listeners then, whatever the I/O threads.
+     *
+     * @param listeners 1 for a single acceptor handing the connections over to the reactors
+     */
+    public ServerConfig setListeners(int listeners) {
+        if (listeners < 1) {
+            throw new IllegalArgumentException("listeners must be positive: " + listeners);
+        }
+        this.listeners = listeners;
+        return this;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * @param backlog the connections waiting to be accepted on a listener, 0 for the default of the system
+     */
+    public ServerConfig setBacklog(int backlog) {
+        this.backlog = backlog;
+        return this;
+    }
+
+    public boolean isReuseAddress() {
+        return reuseAddress;
+    }
+
+    public ServerConfig setReuseAddress(boolean reuseAddress) {
+        this.reuseAddress = reuseAddress;
+        return this;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public ServerConfig setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public ServerConfig setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        return this;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * @param receiveBufferSize SO_RCVBUF, it's set on the listeners so the accepted channels start with it
+     */
+    public ServerConfig setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+        return this;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public ServerConfig setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+        return this;
+    }
+
+    public int getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * @param waitStrategy how the reactors wait for events, {@link AbstractNioAllocator#WAIT_BLOCKING},
+     *                     {@link AbstractNioAllocator#WAIT_BUSY_SPIN} or {@link AbstractNioAllocator#WAIT_BACKOFF}
+     */
+    public ServerConfig setWaitStrategy(int waitStrategy) {
+        if (waitStrategy < AbstractNioAllocator.WAIT_BLOCKING || waitStrategy > AbstractNioAllocator.WAIT_BACKOFF) {
+            throw new IllegalArgumentException("Unknown wait strategy: " + waitStrategy);
+        }
+        this.waitStrategy = waitStrategy;
+        return this;
+    }
+}
@@ -0,0 +1,102 @@
+package com.mszf.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static com.mszf.util.Constant.COMPRESSION_LEVEL;
+import static com.mszf.util.Constant.COMPRESSION_POOL_SIZE;
+import static com.mszf.util.Constant.MAX_FRAME_LENGTH;
+
+/**
+ * Deflates and inflates the bodies of the compressed frames. A compressed body is the varint length of
+ * the content followed by the zlib stream of it. A {@link Deflater} or {@link Inflater} holds native
+ * memory that's costly to set up, so they're taken from a pool and reset after use instead.
+ */
+public class Compression {
+
+    private static final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(COMPRESSION_POOL_SIZE);
+
+    private static final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(COMPRESSION_POOL_SIZE);
+
+    /**
+     * Deflate the content into the buffer, up to its limit.
+     *
+     * @param content
+     * @param dst
+     * @return the bytes written, or -1 if the content doesn't fit deflated, the buffer's position is left as it was
+     */
+    public static int deflate(byte[] content, ByteBuffer dst) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(COMPRESSION_LEVEL);
+        }
+
+        int start = dst.position();
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (!dst.hasRemaining()) {
+                    dst.position(start);
+                    return -1;
+                }
+                deflater.deflate(dst);
+            }
+            return dst.position() - start;
+        } finally {
+            deflater.reset();
+            if (!deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Inflate a compressed body.
+     *
+     * @param body the varint length of the content and the content deflated
+     * @return the content
+     * @throws IOException if the body is corrupt
+     */
+    public static byte[] inflate(ByteBuffer body) throws IOException {
+        int length = Message.readVarint(body);
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Bad compressed length: " + length);
+        }
+
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+
+        try {
+            byte[] content = new byte[length];
+            inflater.setInput(body);
+            int offset = 0;
+            while (offset < length) {
+                int n = inflater.inflate(content, offset, length - offset);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Corrupt compressed body");
+                }
+                offset += n;
+            }
+            // the stream must end with the content, the trailer may be left when it fills the array exactly
+            if (!inflater.finished() && (inflater.inflate(new byte[1]) != 0 || !inflater.finished())) {
+                throw new IOException("Corrupt compressed body");
+            }
+            return content;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed body", e);
+        } finally {
+            inflater.reset();
+            if (!inflaters.offer(inflater)) {
+                inflater.end();
+            }
+        }
+    }
+}
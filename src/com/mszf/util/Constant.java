@@ -5,9 +5,105 @@ public class Constant {
     public final static int CLIENT_CONNECTION_CHECK_SECONDS = 1;
     public final static String CONNECT_REFUSED = "CONNECT_REFUSED";
     public final static String TIMEOUT = "TIMEOUT";
+    public final static String OVERLOADED = "OVERLOADED";
+
+    // connections a client keeps to its server, and how long an idle one is kept alive
+    public final static int CLIENT_POOL_MAX_SIZE = 8;
+    public final static int CLIENT_KEEP_ALIVE_SECONDS = 60;
+    public final static long CLIENT_CONNECT_TIMEOUT_MILLIS = CLIENT_CONNECTION_CHECK_SECONDS * 1000L;
+
+    // the client holds its requests back until these many bytes are on a connection, or the linger's passed,
+    // 0 to write every request at once
+    public final static int CLIENT_FLUSH_BYTES = 0;
+    public final static long CLIENT_FLUSH_LINGER_MICROS = 100;
+
+    // the client frames its requests with the compact header, false for the legacy 8-byte one
+    public final static boolean CLIENT_COMPACT_FRAMES = true;
+
+    // the client tells the server how long it waits for each response, so the server skips the ones it gave up on
+    public final static boolean CLIENT_PROPAGATE_DEADLINES = true;
+
+    // an idle connection is closed by the server after it, 0 to keep it forever
+    public final static int SERVER_IDLE_TIMEOUT_SECONDS = 300;
+
+    // the timing wheel of the I/O threads, accurate to one tick
+    public final static long TIMER_TICK_MILLIS = 10;
+    public final static int TIMER_WHEEL_SIZE = 512;
+
+    // how the I/O loops wait for events: 1 blocks in select, 2 spins on selectNow, 3 spins, then yields, then blocks
+    public final static int SELECT_WAIT_STRATEGY = 1;
+    // the selectNow calls of the backoff before it yields, and the yields before it blocks
+    public final static int SELECT_SPIN_ITERATIONS = 1000;
+    public final static int SELECT_YIELD_ITERATIONS = 100;
 
 
     public final static String HOST = "127.0.0.1";
     public final static int PORT = 3000;
 
+    // number of the server's I/O loops, one per core by default
+    public final static int SERVER_IO_THREADS = Runtime.getRuntime().availableProcessors();
+
+    // the listeners of the server sharing its port with SO_REUSEPORT, 1 for a single acceptor
+    public final static int SERVER_LISTENERS = 1;
+
+    // the socket options of the server, a buffer size of 0 leaves the default of the system
+    public final static int SERVER_BACKLOG = 1024;
+    public final static boolean SERVER_REUSE_ADDRESS = true;
+    public final static boolean SERVER_TCP_NO_DELAY = true;
+    public final static boolean SERVER_KEEP_ALIVE = false;
+    public final static int SERVER_RECEIVE_BUFFER_SIZE = 0;
+    public final static int SERVER_SEND_BUFFER_SIZE = 0;
+
+    // the largest body a frame may declare, a larger one closes the connection
+    public final static int MAX_FRAME_LENGTH = 1024 * 1024 * 1024;
+
+    // a request body above it is spilled to a memory-mapped temp file in the directory, instead of the heap
+    public final static int REQUEST_SPILL_THRESHOLD = 8 * 1024 * 1024;
+    public final static String SPILL_DIRECTORY = System.getProperty("java.io.tmpdir");
+
+    // the smallest payload compressed in a compact frame, 0 to never compress
+    public final static int COMPRESSION_THRESHOLD = 0;
+    public final static int COMPRESSION_LEVEL = 1;
+    // the deflaters and inflaters kept for reuse, each of them holds native memory
+    public final static int COMPRESSION_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+
+    // the response cache of a CachingRequestHandler, its sketch is sized for entries of the average size
+    public final static long RESPONSE_CACHE_MAX_BYTES = 64 * 1024 * 1024;
+    public final static long RESPONSE_CACHE_TTL_MILLIS = 60 * 1000;
+    public final static int RESPONSE_CACHE_AVERAGE_ENTRY_BYTES = 512;
+
+    // the direct buffer pool, size classes are powers of two between the min and max size
+    public final static int BUFFER_POOL_MIN_SIZE = 64;
+    public final static int BUFFER_POOL_MAX_SIZE = 1024 * 1024;
+    public final static int BUFFER_POOL_SLAB_SIZE = 256 * 1024;
+    public final static long BUFFER_POOL_MAX_CACHED_BYTES = 64 * 1024 * 1024;
+
+    // the bounds of the adaptive size of a connection's reads
+    public final static int RECEIVE_BUFFER_MIN = 64;
+    public final static int RECEIVE_BUFFER_INITIAL = 2048;
+    public final static int RECEIVE_BUFFER_MAX = 64 * 1024;
+
+    // the most bytes written to a channel in a selector pass, and the most buffers gathered in one write
+    public final static int WRITE_FLUSH_BYTES = 256 * 1024;
+    public final static int WRITE_GATHER_MAX = 1024;
+
+    // a connection with more bytes queued than the high mark isn't writable, until they drop below the low mark
+    public final static int WRITE_BUFFER_HIGH_WATER_MARK = 1024 * 1024;
+    public final static int WRITE_BUFFER_LOW_WATER_MARK = 512 * 1024;
+
+    // the server stops reading with more requests in flight than the max, until they drop to the resume mark
+    public final static int SERVER_MAX_IN_FLIGHT_REQUESTS = 8192;
+    public final static int SERVER_RESUME_IN_FLIGHT_REQUESTS = 4096;
+
+    // the threads and the queue of the event worker's bounded pool
+    public final static int EVENT_WORKER_THREADS = Runtime.getRuntime().availableProcessors() * 2;
+    public final static int EVENT_WORKER_QUEUE_SIZE = SERVER_MAX_IN_FLIGHT_REQUESTS;
+
+    // a new request is answered with OVERLOADED while the oldest request queued has waited longer than it, 0 never to shed
+    public final static long EVENT_WORKER_SHED_QUEUE_DELAY_MILLIS = 0;
+
+    // the largest batch of a BatchRequestHandler, and how long a batch waits to fill up, 0 to hand it over
+    // at the end of the pass of the loop which read it
+    public final static int BATCH_MAX_SIZE = 64;
+    public final static long BATCH_LINGER_MILLIS = 0;
 }
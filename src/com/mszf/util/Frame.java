@@ -0,0 +1,72 @@
+package com.mszf.util;
+
+import com.mszf.handler.RequestStream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A decoded frame. A multiplexed frame carries the id of its request, so the response can be matched
+ * to the request it answers whatever the order it comes back in. The body is in an array, or spilled
+ * to a memory-mapped file when it's large, or already handed to the stream of a streaming handler.
+ * A compressed body is never streamed, it's inflated as a whole once it's read.
+ */
+public class Frame {
+
+    public boolean multiplexed;
+    public long requestId;
+    public byte[] body;
+
+    // The body spilled to a memory-mapped file, instead of the array
+    public ByteBuffer content;
+
+    // The stream the body is written to as it's read, instead of the array
+    public RequestStream stream;
+
+    public int length;
+
+    // The body is the varint length of the content followed by the content deflated, see Compression
+    public boolean compressed;
+
+    // The System.nanoTime() its sender stops waiting at, 0 for never, see Message#FLAG_DEADLINE
+    public long deadline;
+
+    public Frame(byte[] body) {
+        this.body = body;
+        this.length = body.length;
+    }
+
+    public Frame(long requestId, byte[] body) {
+        this(body);
+        this.multiplexed = true;
+        this.requestId = requestId;
+    }
+
+    public Frame(boolean multiplexed, long requestId, ByteBuffer content) {
+        this.multiplexed = multiplexed;
+        this.requestId = requestId;
+        this.content = content;
+        this.length = content.remaining();
+    }
+
+    public Frame(boolean multiplexed, long requestId, int length, RequestStream stream) {
+        this.multiplexed = multiplexed;
+        this.requestId = requestId;
+        this.length = length;
+        this.stream = stream;
+    }
+
+    /**
+     * @param now System.nanoTime()
+     * @return true if its sender has given up on the response by now
+     */
+    public boolean isExpired(long now) {
+        return deadline != 0 && now - deadline >= 0;
+    }
+
+    /**
+     * @return the body as a buffer, it's not copied
+     */
+    public ByteBuffer buffer() {
+        return content != null ? content.duplicate() : ByteBuffer.wrap(body);
+    }
+}
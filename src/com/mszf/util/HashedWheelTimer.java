@@ -0,0 +1,292 @@
+package com.mszf.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timing wheel driven by the I/O thread owning it. Timeouts can be added and cancelled by
+ * any thread at O(1) cost, the owner calls {@link #expire(long)} on every turn of its loop to run the
+ * tasks which are due, so a busy loop fires them as well as an idle one. The tasks run on the owner
+ * thread and are accurate to one tick. An idle owner blocks until the earliest deadline in the wheel
+ * rather than waking up on every tick, see {@link #nextDelay(long, long)}.
+ */
+public class HashedWheelTimer {
+
+    private final long tickMillis;
+
+    private final Bucket[] wheel;
+
+    private final int mask;
+
+    private final long startTime;
+
+    // The next tick to process, only touched by the owner thread
+    private long tick = 0;
+
+    // No timeout in the wheel fires before it, only touched by the owner thread. It's found again by
+    // scanning the wheel once it's passed, at most once a tick
+    private long nextDeadline = Long.MAX_VALUE;
+    private long scannedTick = -1;
+
+    // Timeouts added by any thread, moved into the wheel by the owner thread
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+    // Timeouts cancelled by any thread, unlinked from the wheel by the owner thread
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+    // Number of the timeouts not expired or cancelled yet
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @param tickMillis the duration of a tick
+     * @param ticksPerWheel the number of buckets, rounded up to a power of two
+     */
+    public HashedWheelTimer(long tickMillis, int ticksPerWheel) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("tickMillis must be positive: " + tickMillis);
+        }
+
+        int length = 1;
+        while (length < ticksPerWheel) {
+            length <<= 1;
+        }
+
+        this.tickMillis = tickMillis;
+        this.wheel = new Bucket[length];
+        for (int i = 0; i < length; i++) {
+            this.wheel[i] = new Bucket();
+        }
+        this.mask = length - 1;
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Schedule a task, it's safe to call from any thread. A thread other than the owner should wake the
+     * owner up if the owner may be blocking for longer than the delay.
+     *
+     * @param task
+     * @param delayMillis
+     * @return the handle to cancel the task
+     */
+    public Timeout newTimeout(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(this, task, System.currentTimeMillis() + Math.max(0, delayMillis));
+        size.incrementAndGet();
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Run the tasks due by now, called by the owner thread.
+     *
+     * @param now
+     */
+    public void expire(long now) {
+        long current = (now - startTime) / tickMillis;
+        if (current < tick) {
+            // still in the tick processed last time
+            return;
+        }
+
+        transferCancelled();
+        transferPending();
+
+        for (; tick <= current; tick++) {
+            wheel[(int) (tick & mask)].expire(startTime + (tick + 1) * tickMillis);
+        }
+    }
+
+    /**
+     * How long the owner may block, e.g. in a select, without missing a timeout. Called by the owner thread.
+     *
+     * @param now
+     * @param maxMillis
+     * @return milliseconds until the earliest timeout is due, or the given maximum when there's nothing to wait for
+     */
+    public long nextDelay(long now, long maxMillis) {
+        if (size.get() == 0) {
+            return maxMillis;
+        }
+
+        transferCancelled();
+        transferPending();
+        if (nextDeadline <= now) {
+            if (scannedTick == tick) {
+                // scanned in this tick already, wait for the next one
+                return Math.max(1, Math.min(startTime + tick * tickMillis - now, maxMillis));
+            }
+            scannedTick = tick;
+            nextDeadline = earliestDeadline();
+        }
+        return Math.max(1, Math.min(nextDeadline - now, maxMillis));
+    }
+
+    // The start of the tick the first timeout of the wheel fires in. A timeout due in this round of the
+    // wheel fires before any of the later rounds, so the scan stops at the first bucket holding one
+    private long earliestDeadline() {
+        long earliest = Long.MAX_VALUE;
+        for (long t = tick; t < tick + wheel.length; t++) {
+            for (Timeout timeout = wheel[(int) (t & mask)].head; timeout != null; timeout = timeout.next) {
+                if (timeout.isCancelled()) {
+                    continue;
+                }
+                if (timeout.remainingRounds <= 0) {
+                    return startTime + t * tickMillis;
+                }
+                earliest = Math.min(earliest, t + timeout.remainingRounds * wheel.length);
+            }
+        }
+        return earliest == Long.MAX_VALUE ? Long.MAX_VALUE : startTime + earliest * tickMillis;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+
+            long calculated = (timeout.deadline - startTime) / tickMillis;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+
+            // a deadline in the past is expired on the current tick
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+            nextDeadline = Math.min(nextDeadline, startTime + ticks * tickMillis);
+        }
+    }
+
+    private void transferCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    public static class Timeout {
+
+        private static final int ST_INIT = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(ST_INIT);
+
+        // The fields below are only touched by the owner thread
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return false if the task has run or is cancelled already
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(ST_INIT, ST_CANCELLED)) {
+                return false;
+            }
+            timer.size.decrementAndGet();
+            timer.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == ST_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == ST_EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(ST_INIT, ST_EXPIRED)) {
+                return;
+            }
+            timer.size.decrementAndGet();
+
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.out.println("ERROR: timer task " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The timeouts hashed to one slot of the wheel, in a doubly linked list.
+     */
+    private static class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void expire(long tickDeadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    if (timeout.deadline <= tickDeadline) {
+                        timeout.expire();
+                    } else {
+                        // not due in this round after all, hash it again
+                        timeout.timer.pending.add(timeout);
+                    }
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = timeout.next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+}
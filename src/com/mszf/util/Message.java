@@ -1,18 +1,258 @@
 package com.mszf.util;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 public class Message {
 
+    // The top bit of the length header marks a frame carrying the request id after the header
+    public static final long MULTIPLEX_FLAG = Long.MIN_VALUE;
+
+    public static final int HEADER_LENGTH = Long.BYTES;
+    public static final int MULTIPLEX_HEADER_LENGTH = Long.BYTES * 2;
+
+    // The first byte of a compact frame, the magic in the high bits and the version in the low ones.
+    // A legacy frame starts with 0x00 or 0x80, the top byte of its length header
+    public static final byte COMPACT_MAGIC = (byte) 0xC1;
+
+    // The flags of a compact frame, the request id follows the length
+    public static final int FLAG_REQUEST_ID = 0x01;
+    // the body is deflated, see Compression
+    public static final int FLAG_COMPRESSED = 0x02;
+    // the varint milliseconds the sender still waits for the response follow the request id
+    public static final int FLAG_DEADLINE = 0x04;
+
+    // magic, flags, a varint length of 5 bytes at most, a varint request id of 10 bytes at most
+    // and a varint timeout of 5 bytes at most
+    public static final int MAX_COMPACT_HEADER_LENGTH = 2 + 5 + 10 + 5;
+
     private String content;
 
+    // The encoded content, encoded once
+    private byte[] bytes;
+
     public Message(String content) {
         this.content = content;
     }
 
     public byte[] getHeader() {
-        return ByteUtils.longToBytes(content.getBytes().length);
+        return ByteUtils.longToBytes(getContent().length);
     }
 
     public byte[] getBody() {
-        return ByteUtils.combine(getHeader(), content.getBytes());
+        byte[] content = getContent();
+        ByteBuffer body = ByteBuffer.allocate(frameLength(content.length, false));
+        writeFrame(body, content);
+        return body.array();
+    }
+
+    public byte[] getContent() {
+        if (bytes == null) {
+            bytes = content.getBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * @param contentLength
+     * @param multiplexed
+     * @return the length of the frame of the content
+     */
+    public static int frameLength(int contentLength, boolean multiplexed) {
+        return (multiplexed ? MULTIPLEX_HEADER_LENGTH : HEADER_LENGTH) + contentLength;
+    }
+
+    /**
+     * Frame the content with the length header.
+     *
+     * @param content
+     * @return
+     */
+    public static byte[] frame(byte[] content) {
+        ByteBuffer frame = ByteBuffer.allocate(frameLength(content.length, false));
+        writeFrame(frame, content);
+        return frame.array();
+    }
+
+    /**
+     * Frame the content with the flagged length header followed by the request id.
+     *
+     * @param requestId
+     * @param content
+     * @return
+     */
+    public static byte[] frame(long requestId, byte[] content) {
+        ByteBuffer frame = ByteBuffer.allocate(frameLength(content.length, true));
+        writeFrame(frame, requestId, content);
+        return frame.array();
+    }
+
+    /**
+     * Write the frame of the content straight into the buffer, see {@link #frame(byte[])}.
+     *
+     * @param dst
+     * @param content
+     */
+    public static void writeFrame(ByteBuffer dst, byte[] content) {
+        dst.putLong(content.length).put(content);
+    }
+
+    /**
+     * Write the frame of the content straight into the buffer, see {@link #frame(long, byte[])}.
+     *
+     * @param dst
+     * @param requestId
+     * @param content
+     */
+    public static void writeFrame(ByteBuffer dst, long requestId, byte[] content) {
+        dst.putLong(MULTIPLEX_FLAG | content.length).putLong(requestId).put(content);
+    }
+
+    /**
+     * Write the length header of a content written apart, see {@link #frame(byte[])}.
+     *
+     * @param dst
+     * @param contentLength
+     */
+    public static void writeHeader(ByteBuffer dst, long contentLength) {
+        dst.putLong(contentLength);
+    }
+
+    /**
+     * Write the flagged length header and the request id of a content written apart, see {@link #frame(long, byte[])}.
+     *
+     * @param dst
+     * @param requestId
+     * @param contentLength
+     */
+    public static void writeHeader(ByteBuffer dst, long requestId, long contentLength) {
+        dst.putLong(MULTIPLEX_FLAG | contentLength).putLong(requestId);
+    }
+
+    /**
+     * @param contentLength
+     * @param multiplexed
+     * @param requestId
+     * @return the length of the compact frame of the content
+     */
+    public static int compactFrameLength(int contentLength, boolean multiplexed, long requestId) {
+        return 2 + varintLength(contentLength) + (multiplexed ? varintLength(requestId) : 0) + contentLength;
+    }
+
+    /**
+     * Write the compact frame of the content straight into the buffer: the magic/version byte, the flags
+     * byte and the varint length.
+     *
+     * @param dst
+     * @param content
+     */
+    public static void writeCompactFrame(ByteBuffer dst, byte[] content) {
+        writeCompactHeader(dst, 0, 0, content.length);
+        dst.put(content);
+    }
+
+    /**
+     * Write the compact frame of the content straight into the buffer, with the varint request id after the length.
+     *
+     * @param dst
+     * @param requestId
+     * @param content
+     */
+    public static void writeCompactFrame(ByteBuffer dst, long requestId, byte[] content) {
+        writeCompactHeader(dst, FLAG_REQUEST_ID, requestId, content.length);
+        dst.put(content);
+    }
+
+    /**
+     * Write the header of a compact frame of a content written apart.
+     *
+     * @param dst
+     * @param flags {@link #FLAG_REQUEST_ID} or 0
+     * @param requestId written if it's flagged
+     * @param contentLength
+     */
+    public static void writeCompactHeader(ByteBuffer dst, int flags, long requestId, long contentLength) {
+        writeCompactHeader(dst, flags, requestId, 0, contentLength);
+    }
+
+    /**
+     * Write the header of a compact frame of a content written apart.
+     *
+     * @param dst
+     * @param flags {@link #FLAG_REQUEST_ID}, {@link #FLAG_COMPRESSED}, {@link #FLAG_DEADLINE} or 0
+     * @param requestId written if it's flagged
+     * @param timeoutMillis written if it's flagged
+     * @param contentLength
+     */
+    public static void writeCompactHeader(ByteBuffer dst, int flags, long requestId, int timeoutMillis, long contentLength) {
+        dst.put(COMPACT_MAGIC).put((byte) flags);
+        writeVarint(dst, contentLength);
+        if ((flags & FLAG_REQUEST_ID) != 0) {
+            writeVarint(dst, requestId);
+        }
+        if ((flags & FLAG_DEADLINE) != 0) {
+            writeVarint(dst, timeoutMillis);
+        }
+    }
+
+    /**
+     * @param flags
+     * @param requestId
+     * @param contentLength
+     * @return the length of the header of a compact frame
+     */
+    public static int compactHeaderLength(int flags, long requestId, long contentLength) {
+        return compactHeaderLength(flags, requestId, 0, contentLength);
+    }
+
+    /**
+     * @param flags
+     * @param requestId
+     * @param timeoutMillis
+     * @param contentLength
+     * @return the length of the header of a compact frame
+     */
+    public static int compactHeaderLength(int flags, long requestId, int timeoutMillis, long contentLength) {
+        return 2 + varintLength(contentLength) + ((flags & FLAG_REQUEST_ID) != 0 ? varintLength(requestId) : 0)
+                + ((flags & FLAG_DEADLINE) != 0 ? varintLength(timeoutMillis) : 0);
+    }
+
+    public static int varintLength(long value) {
+        int length = 1;
+        while ((value >>>= 7) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    // seven bits a byte, low bits first, the top bit set on every byte but the last
+    public static void writeVarint(ByteBuffer dst, long value) {
+        while ((value & ~0x7FL) != 0) {
+            dst.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    /**
+     * Read a varint of 32 bits at most, the whole of it must be in the buffer.
+     *
+     * @param src
+     * @return the value
+     * @throws IOException if it's malformed or cut short
+     */
+    public static int readVarint(ByteBuffer src) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!src.hasRemaining()) {
+                throw new IOException("Truncated varint");
+            }
+            byte b = src.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
     }
 }
@@ -0,0 +1,69 @@
+package com.mszf.util;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An unbounded lock-free queue for many producers and a single consumer. A producer pays one atomic swap
+ * and a volatile store to offer, the consumer polls without any atomic instruction. Only the consumer thread
+ * may call {@link #poll()}, {@link #peek()} and {@link #isEmpty()}.
+ */
+public class MpscQueue<E> {
+
+    private final AtomicReference<Node<E>> tail;
+
+    // The stub node before the first element, only touched by the consumer
+    private Node<E> head;
+
+    public MpscQueue() {
+        Node<E> stub = new Node<>(null);
+        this.head = stub;
+        this.tail = new AtomicReference<>(stub);
+    }
+
+    public void offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+
+        Node<E> node = new Node<>(e);
+        Node<E> prev = tail.getAndSet(node);
+        // the element is visible to the consumer once it's linked. It's a volatile store, not a lazy one, so a
+        // producer checking a flag of the consumer's next can't miss a consumer checking the queue after it's set
+        prev.next = node;
+    }
+
+    /**
+     * @return null if the queue is empty, or an element is offered but not linked yet
+     */
+    public E poll() {
+        Node<E> next = head.next;
+        if (next == null) {
+            return null;
+        }
+
+        E value = next.value;
+        next.value = null;
+        head = next;
+        return value;
+    }
+
+    public E peek() {
+        Node<E> next = head.next;
+        return next == null ? null : next.value;
+    }
+
+    public boolean isEmpty() {
+        return head.next == null;
+    }
+
+    private static final class Node<E> {
+
+        E value;
+
+        volatile Node<E> next;
+
+        Node(E value) {
+            this.value = value;
+        }
+    }
+}